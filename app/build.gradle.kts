@@ -52,6 +52,8 @@ dependencies {
 
     implementation("com.google.mlkit:segmentation-selfie:16.0.0-beta4")
 
+    implementation("androidx.heifwriter:heifwriter:1.0.0")
+
     implementation("de.javagl:jgltf-model:2.0.3")
     implementation("de.javagl:jgltf-impl-v2:2.0.3")
 
@@ -0,0 +1,119 @@
+package kit.developers.kitar;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Замер конвертации маски сегментации: прежний путь (getFloat + setPixel на каждый пиксель)
+ * против MaskConverter.toArgb + один setPixels в ALPHA_8.
+ * Результаты - в logcat (тег MaskConverterBenchmark)
+ */
+@RunWith(AndroidJUnit4.class)
+public class MaskConverterBenchmarkTest {
+
+    private static final String TAG = "MaskConverterBenchmark";
+
+    // Типичные размеры маски selfie segmentation: квадратная область и кадр 16:9
+    private static final int[][] MASK_SIZES = {{256, 256}, {256, 144}};
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 20;
+
+    @Test
+    public void perPixelVersusBulkConversion() {
+        for (int[] size : MASK_SIZES) {
+            int width = size[0];
+            int height = size[1];
+            ByteBuffer mask = createMask(width, height);
+
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                convertPerPixel(mask, width, height).recycle();
+                convertBulk(mask, width, height).recycle();
+            }
+
+            long perPixelNs = 0;
+            long bulkNs = 0;
+            for (int i = 0; i < MEASURED_RUNS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                Bitmap perPixel = convertPerPixel(mask, width, height);
+                perPixelNs += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                Bitmap bulk = convertBulk(mask, width, height);
+                bulkNs += SystemClock.elapsedRealtimeNanos() - start;
+
+                assertEquals(width, bulk.getWidth());
+                assertEquals(height, bulk.getHeight());
+                perPixel.recycle();
+                bulk.recycle();
+            }
+
+            float perPixelMs = perPixelNs / 1e6f / MEASURED_RUNS;
+            float bulkMs = bulkNs / 1e6f / MEASURED_RUNS;
+            Log.d(TAG, width + "x" + height + ": по пикселю " + perPixelMs + " мс, пачкой " + bulkMs +
+                    " мс (x" + (bulkMs > 0 ? perPixelMs / bulkMs : 0f) + ")");
+        }
+    }
+
+    /**
+     * Прежний путь SegmentationHelper: вероятность по одной, setPixel на каждый пиксель
+     */
+    private static Bitmap convertPerPixel(ByteBuffer mask, int width, int height) {
+        ByteBuffer buffer = mask.duplicate().order(ByteOrder.nativeOrder());
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float confidence = buffer.getFloat();
+                bitmap.setPixel(x, y, confidence > 0.5f ? Color.WHITE : Color.TRANSPARENT);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Текущий путь SegmentationHelper.maskToBitmap
+     */
+    private static Bitmap convertBulk(ByteBuffer mask, int width, int height) {
+        FloatBuffer confidences = mask.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        int[] pixels = new int[width * height];
+        MaskConverter.toArgb(confidences, new float[pixels.length], pixels);
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    /**
+     * Маска как от ML Kit: прямой буфер float в нативном порядке, фигура с мягким краем
+     */
+    private static ByteBuffer createMask(int width, int height) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+        FloatBuffer floats = buffer.asFloatBuffer();
+        Random random = new Random(42);
+
+        float centerX = width / 2f;
+        float radius = Math.min(width, height) / 3f;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float distance = (float) Math.hypot(x - centerX, y - height * 0.6f);
+                float confidence = Math.max(0f, Math.min(1f, (radius - distance) / 8f + 0.5f));
+                floats.put(Math.max(0f, Math.min(1f, confidence + (random.nextFloat() - 0.5f) * 0.05f)));
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,122 @@
+package kit.developers.kitar;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Замер кодирования снимка: время и размер файла для доступных форматов и качеств.
+ * Результаты - в logcat (тег PhotoEncoderBenchmark)
+ */
+@RunWith(AndroidJUnit4.class)
+public class PhotoEncoderBenchmarkTest {
+
+    private static final String TAG = "PhotoEncoderBenchmark";
+
+    // Размер типичного снимка 12 МП
+    private static final int SAMPLE_WIDTH = 4000;
+    private static final int SAMPLE_HEIGHT = 3000;
+    private static final int[] QUALITIES = {80, 90, 95};
+
+    private File dir;
+    private Bitmap sample;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dir = new File(context.getCacheDir(), "encoder_benchmark");
+        dir.mkdirs();
+        sample = createSample();
+    }
+
+    @After
+    public void tearDown() {
+        sample.recycle();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void encodeAllFormatsAndQualities() {
+        for (PhotoEncoder.Format format : PhotoEncoder.Format.values()) {
+            if (format == PhotoEncoder.Format.HEIC && !PhotoEncoder.isHeicSupported()) {
+                Log.d(TAG, "HEIC недоступен на устройстве");
+                continue;
+            }
+
+            for (int quality : QUALITIES) {
+                PhotoEncoder encoder = new PhotoEncoder(format, quality);
+                File file = new File(dir, "sample_" + quality + format.extension);
+
+                long start = SystemClock.uptimeMillis();
+                PhotoEncoder.Format written = encoder.encode(sample, file);
+                long elapsed = SystemClock.uptimeMillis() - start;
+
+                assertEquals(format + " q" + quality, format, written);
+                assertTrue(format + " q" + quality + " пустой файл", file.length() > 0);
+
+                Log.d(TAG, format + " q" + quality + ": " + elapsed + " мс, " + file.length() / 1024 + " КБ");
+            }
+        }
+    }
+
+    /**
+     * Градиент с шумом и фигурами - ближе к фото, чем однотонная заливка
+     */
+    private static Bitmap createSample() {
+        Bitmap bitmap = Bitmap.createBitmap(SAMPLE_WIDTH, SAMPLE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setShader(new LinearGradient(0, 0, SAMPLE_WIDTH, SAMPLE_HEIGHT,
+                Color.rgb(40, 90, 160), Color.rgb(230, 190, 120), Shader.TileMode.CLAMP));
+        canvas.drawRect(0, 0, SAMPLE_WIDTH, SAMPLE_HEIGHT, paint);
+        paint.setShader(null);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            paint.setColor(Color.argb(160, random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            canvas.drawCircle(random.nextInt(SAMPLE_WIDTH), random.nextInt(SAMPLE_HEIGHT),
+                    20 + random.nextInt(300), paint);
+        }
+
+        // Шум сенсора построчно
+        int[] row = new int[SAMPLE_WIDTH];
+        for (int y = 0; y < SAMPLE_HEIGHT; y++) {
+            bitmap.getPixels(row, 0, SAMPLE_WIDTH, 0, y, SAMPLE_WIDTH, 1);
+            for (int x = 0; x < SAMPLE_WIDTH; x++) {
+                int noise = random.nextInt(17) - 8;
+                int r = Math.max(0, Math.min(255, Color.red(row[x]) + noise));
+                int g = Math.max(0, Math.min(255, Color.green(row[x]) + noise));
+                int b = Math.max(0, Math.min(255, Color.blue(row[x]) + noise));
+                row[x] = Color.rgb(r, g, b);
+            }
+            bitmap.setPixels(row, 0, SAMPLE_WIDTH, 0, y, SAMPLE_WIDTH, 1);
+        }
+        return bitmap;
+    }
+}
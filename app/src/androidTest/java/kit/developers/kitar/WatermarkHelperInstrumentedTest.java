@@ -0,0 +1,105 @@
+package kit.developers.kitar;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Кэш масштабированных водяных знаков и наложение прямо в canvas снимка
+ */
+@RunWith(AndroidJUnit4.class)
+public class WatermarkHelperInstrumentedTest {
+
+    private static final int IMAGE_WIDTH = 800;
+    private static final int IMAGE_HEIGHT = 600;
+
+    private WatermarkHelper watermarkHelper;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        watermarkHelper = new WatermarkHelper(context);
+        assertTrue("watermark.png из assets", watermarkHelper.isWatermarkLoaded());
+    }
+
+    @After
+    public void tearDown() {
+        watermarkHelper.cleanup();
+    }
+
+    @Test
+    public void drawWatermark_drawsIntoTargetBitmap() {
+        Bitmap image = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        image.eraseColor(Color.BLACK);
+
+        watermarkHelper.drawWatermark(new Canvas(image), IMAGE_WIDTH, IMAGE_HEIGHT);
+
+        int[] pixels = new int[IMAGE_WIDTH * IMAGE_HEIGHT];
+        image.getPixels(pixels, 0, IMAGE_WIDTH, 0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
+        int changed = 0;
+        for (int pixel : pixels) {
+            if (pixel != Color.BLACK) {
+                changed++;
+            }
+        }
+
+        assertTrue("знак нарисован", changed > 0);
+        assertTrue("знак не закрывает весь снимок", changed < pixels.length);
+        image.recycle();
+    }
+
+    @Test
+    public void drawWatermark_reusesScaledVariantForSameWidth() {
+        Bitmap image = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(image);
+
+        watermarkHelper.drawWatermark(canvas, IMAGE_WIDTH, IMAGE_HEIGHT);
+        watermarkHelper.drawWatermark(canvas, IMAGE_WIDTH, IMAGE_HEIGHT);
+        watermarkHelper.drawWatermark(canvas, IMAGE_WIDTH, IMAGE_HEIGHT);
+
+        // Новый масштабированный bitmap создается только при первом наложении
+        assertEquals(1, watermarkHelper.getScaledCacheMisses());
+        assertEquals(2, watermarkHelper.getScaledCacheHits());
+        assertEquals(1, watermarkHelper.getScaledCacheSize());
+        image.recycle();
+    }
+
+    @Test
+    public void drawWatermark_evictsLeastRecentlyUsedAfterThreeWidths() {
+        Bitmap image = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(image);
+
+        // Ширины дают разные размеры знака (WATERMARK_SCALE от ширины)
+        watermarkHelper.drawWatermark(canvas, 400, IMAGE_HEIGHT);
+        watermarkHelper.drawWatermark(canvas, 500, IMAGE_HEIGHT);
+        watermarkHelper.drawWatermark(canvas, 600, IMAGE_HEIGHT);
+
+        // 400 использован недавно - вытесняется 500
+        watermarkHelper.drawWatermark(canvas, 400, IMAGE_HEIGHT);
+        watermarkHelper.drawWatermark(canvas, 700, IMAGE_HEIGHT);
+
+        assertEquals(3, watermarkHelper.getScaledCacheSize());
+        assertEquals(4, watermarkHelper.getScaledCacheMisses());
+        assertEquals(1, watermarkHelper.getScaledCacheHits());
+
+        watermarkHelper.drawWatermark(canvas, 400, IMAGE_HEIGHT);
+        watermarkHelper.drawWatermark(canvas, 600, IMAGE_HEIGHT);
+        assertEquals(4, watermarkHelper.getScaledCacheMisses());
+
+        watermarkHelper.drawWatermark(canvas, 500, IMAGE_HEIGHT);
+        assertEquals(5, watermarkHelper.getScaledCacheMisses());
+        assertEquals(3, watermarkHelper.getScaledCacheSize());
+        image.recycle();
+    }
+}
@@ -7,10 +7,16 @@ import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
+import android.view.Display;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
@@ -22,6 +28,8 @@ import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Оптимизированный View с кэшированием и поддержкой текстур
@@ -29,7 +37,6 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class AROverlayView extends View {
 
     private static final String TAG = "AROverlayView";
-    private static final long FRAME_TIME_MS = 66; // ~30 FPS
 
     private Rect qrBounds;
     private List<Simple3DRenderer.Vector3> vertices;
@@ -44,12 +51,25 @@ public class AROverlayView extends View {
     private Paint qrPaint;
     private Paint bitmapPaint;
 
-    // Кэш модели (большой, для рендеринга)
-    private Bitmap cachedModelBitmap;
-
-    // Текущий отрендеренный bitmap (актуальная позиция и масштаб)
-    private Bitmap currentRenderedBitmap;
-    private Canvas currentCanvas;
+    // Кэш модели (большой, для рендеринга). Пишется в renderExecutor, проверяется из UI потока -
+    // volatile публикует готовый bitmap вместе с cachedModelContentBounds, записанными до него
+    private volatile Bitmap cachedModelBitmap;
+    // Область кэша, занятая моделью (остальное прозрачно); меняется только в renderExecutor
+    private final RectF cachedModelContentBounds = new RectF();
+
+    // Переиспользуемые буферы отрендеренной модели (актуальная позиция и масштаб)
+    private final OverlayBufferRing bufferRing = new OverlayBufferRing();
+    private final Canvas renderCanvas = new Canvas();
+    private final Matrix renderMatrix = new Matrix();
+    private final Paint renderPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+    private final RectF renderBounds = new RectF();
+    private final Rect renderDirtyBounds = new Rect();
+
+    // Область модели на экране (UI поток). View инвалидируется целиком: с аппаратным
+    // ускорением invalidate(Rect) игнорируется (и устарел с API 28), поэтому экономия -
+    // только в очистке, рендере и drawBitmap по прямоугольнику модели
+    private final RectF mappedBounds = new RectF();
+    private static final int DIRTY_PADDING_PX = 2; // Запас на сглаживание краев в буфере
 
     private static final int CACHE_SIZE = 8000;
 
@@ -72,12 +92,40 @@ public class AROverlayView extends View {
 
     // Асинхронная генерация кэша
     private ExecutorService renderExecutor;
-    private AtomicBoolean isGeneratingCache = new AtomicBoolean(false);
     private AtomicBoolean needsRegenerateCache = new AtomicBoolean(true);
     private AtomicBoolean isRendering = new AtomicBoolean(false);
 
-    // FPS контроль
-    private long lastFrameTime = 0;
+    // Поколение кэша: новая геометрия отменяет генерацию старого кэша
+    private final AtomicInteger cacheGeneration = new AtomicInteger();
+    private volatile int submittedCacheGeneration = -1;
+    private static final int CANCEL_CHECK_EVERY_FACES = 64;
+
+    // Планировщик рендера: выполняется только самая свежая поза
+    private final AtomicReference<RenderRequest> pendingRender = new AtomicReference<>();
+    private volatile long displayedPoseTimestamp = 0;
+    private static final long MAX_DISPLAYED_AGE_MS = 100;
+
+    // Кадры оверлея по vsync (Choreographer): поза берется на время кадра
+    private final Choreographer.FrameCallback frameCallback = this::onVsyncFrame;
+    private boolean isFrameScheduled = false;
+    private long framePeriodNanos = 1_000_000_000L / 60;
+    private long lastFrameNanos = 0;
+    private PoseFilter.Pose framePose = null;
+
+    // Предел частоты оверлея по тепловому состоянию
+    private static final int MAX_FPS = 120;
+    private static final int MODERATE_MAX_FPS = 60;
+    private static final int SEVERE_MAX_FPS = 30;
+    private int thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+
+    // Синхронизация с кадром превью: считаем, что на экране кадр, снятый
+    // estimatedPreviewLatencyMs назад. Это оценка по задержке кадров анализа
+    private volatile long estimatedPreviewLatencyMs = 0;
+    private long residualLatency = 0;
+    private long residualSumMs = 0;
+    private long residualMaxMs = 0;
+    private int residualCount = 0;
+    private static final int RESIDUAL_LOG_EVERY = 120;
 
     // Детектор жестов
     private ScaleGestureDetector scaleGestureDetector;
@@ -87,8 +135,18 @@ public class AROverlayView extends View {
     private float lastUserScale = 1.0f;
     private static final float QR_MOVEMENT_THRESHOLD = 15.0f;  // Порог движения в пикселях
     private static final float SCALE_CHANGE_THRESHOLD = 0.05f;  // Порог изменения масштаба (5%)
-    private long lastRenderTime = 0;
-    private static final long MIN_RENDER_INTERVAL_MS = 20;  // Минимальный интервал между рендерами
+
+    // Сглаживание и предсказание позы между детекциями QR
+    private final PoseFilter poseFilter = new PoseFilter();
+    private Matrix reprojectionMatrix = new Matrix();
+
+    // Маска человека из сегментации превью: модель не рисуется поверх человека (UI поток)
+    private Bitmap personMask;
+    private boolean personMaskMirrored;
+    private long personMaskTimestamp;
+    private final Matrix personMaskMatrix = new Matrix();
+    private Paint personMaskPaint;
+    private static final long PERSON_MASK_MAX_AGE_MS = 300;
 
     public interface OnScaleChangeListener {
         void onScaleChanged(float scale);
@@ -115,6 +173,10 @@ public class AROverlayView extends View {
 
         bitmapPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
 
+        // Вырезаем модель там, где маска непрозрачна (человек)
+        personMaskPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        personMaskPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+
         materials = new HashMap<>();
         textures = new HashMap<>();
 
@@ -157,6 +219,7 @@ public class AROverlayView extends View {
             }
 
             invalidate();
+            scheduleFrame();
             return true;
         }
     }
@@ -206,6 +269,7 @@ public class AROverlayView extends View {
         if (isModelLoaded) {
             Log.d(TAG, "Геометрия загружена: " + vertices.size() + " вершин, " +
                     "Текстуры: " + (useTextures ? "Да" : "Нет"));
+            cacheGeneration.incrementAndGet();
             needsRegenerateCache.set(true);
             generateCachedModel();
         }
@@ -234,23 +298,184 @@ public class AROverlayView extends View {
     }
 
     public void updateQRPosition(Rect bounds) {
+        updateQRPosition(bounds, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Новая поза QR
+     *
+     * @param bounds Границы QR в координатах view
+     * @param frameTimestampMs Время экспозиции кадра камеры (шкала SystemClock.uptimeMillis)
+     */
+    public void updateQRPosition(Rect bounds, long frameTimestampMs) {
         if (bounds != null) {
-            this.qrBounds = new Rect(bounds);
+            poseFilter.update(bounds, frameTimestampMs);
+
+            // Работаем со сглаженной позой вместо "сырой" детекции
+            PoseFilter.Pose pose = poseFilter.predict(frameTimestampMs);
+            this.qrBounds = pose != null ? pose.toRect() : new Rect(bounds);
 
             if (needsRegenerateCache.get() && cachedModelBitmap == null) {
                 generateCachedModel();
             }
 
-            // Проверяем, нужно ли обновить рендер
-            if (shouldUpdateRender(bounds)) {
-                updateCurrentRender();
-            }
+            // Рендер и отрисовка - в ближайшем кадре дисплея
+            scheduleFrame();
+        }
+    }
 
-            long currentTime = System.currentTimeMillis();
-            if (currentTime - lastFrameTime >= FRAME_TIME_MS) {
-                lastFrameTime = currentTime;
-                invalidate();
-            }
+    /**
+     * Новая маска человека (UI поток). Маска покрывает весь кадр анализа,
+     * который растянут на view так же, как границы QR
+     *
+     * @param mask Альфа = вероятность человека; view владеет маской и освободит ее
+     * @param mirrored Фронтальная камера: маска отражается по горизонтали
+     * @param frameTimestampMs Время кадра, по которому построена маска
+     */
+    public void setPersonMask(Bitmap mask, boolean mirrored, long frameTimestampMs) {
+        Bitmap previous = personMask;
+        personMask = mask;
+        personMaskMirrored = mirrored;
+        personMaskTimestamp = frameTimestampMs;
+
+        if (previous != null && previous != mask) {
+            previous.recycle();
+        }
+
+        // Модель перерисовывается без нового рендера: маска накладывается в onDraw
+        if (bufferRing.hasFrame()) {
+            invalidate();
+        }
+    }
+
+    public void clearPersonMask() {
+        if (personMask != null) {
+            personMask.recycle();
+            personMask = null;
+        }
+    }
+
+    /**
+     * Тепловой статус устройства (PowerManager.THERMAL_STATUS_*): при перегреве
+     * оверлей обновляется реже частоты дисплея
+     */
+    public void setThermalStatus(int status) {
+        thermalStatus = status;
+    }
+
+    /**
+     * Оценка задержки превью: насколько кадр камеры на экране старше момента vsync.
+     * Прямых меток кадров превью нет, поэтому передается задержка кадров анализа
+     * того же сенсора; путь превью через композитор обычно добавляет еще кадр дисплея
+     */
+    public void setEstimatedPreviewLatencyMs(long latencyMs) {
+        estimatedPreviewLatencyMs = Math.max(0, latencyMs);
+    }
+
+    /**
+     * Остаточная задержка последнего кадра оверлея, мс: насколько поза экстраполирована
+     * за последнее измерение (больше 0) или взята из истории (меньше 0)
+     */
+    public long getResidualLatencyMs() {
+        return residualLatency;
+    }
+
+    private void scheduleFrame() {
+        if (isFrameScheduled) {
+            return;
+        }
+
+        // Цепочка кадров начинается заново - частота дисплея могла смениться (90/120 Гц)
+        if (lastFrameNanos == 0) {
+            updateFramePeriod();
+        }
+
+        isFrameScheduled = true;
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    private void updateFramePeriod() {
+        Display display = getDisplay();
+        float refreshRate = display != null ? display.getRefreshRate() : 60f;
+        if (refreshRate < 1f) {
+            refreshRate = 60f;
+        }
+        framePeriodNanos = (long) (1_000_000_000L / refreshRate);
+    }
+
+    private void recordResidualLatency(long residualMs) {
+        residualLatency = residualMs;
+        residualSumMs += Math.abs(residualMs);
+        residualMaxMs = Math.max(residualMaxMs, Math.abs(residualMs));
+
+        if (++residualCount % RESIDUAL_LOG_EVERY == 0) {
+            Log.d(TAG, "Остаточная задержка оверлея: средняя " + (residualSumMs / residualCount) +
+                    " мс, макс " + residualMaxMs + " мс, оценка задержки превью " + estimatedPreviewLatencyMs + " мс");
+            residualSumMs = 0;
+            residualMaxMs = 0;
+            residualCount = 0;
+        }
+    }
+
+    /**
+     * Каждый какой кадр дисплея обновляет оверлей
+     */
+    private int getFrameDivisor() {
+        int maxFps;
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            maxFps = SEVERE_MAX_FPS;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            maxFps = MODERATE_MAX_FPS;
+        } else {
+            maxFps = MAX_FPS;
+        }
+
+        long minPeriodNanos = 1_000_000_000L / maxFps;
+        return (int) Math.max(1, (minPeriodNanos + framePeriodNanos / 2) / framePeriodNanos);
+    }
+
+    /**
+     * Кадр Choreographer: берем позу на время vsync, при необходимости
+     * запускаем рендер и перерисовываем область модели
+     */
+    private void onVsyncFrame(long frameTimeNanos) {
+        isFrameScheduled = false;
+
+        // Под тепловым бюджетом пропускаем часть кадров дисплея
+        long sinceLastFrame = frameTimeNanos - lastFrameNanos;
+        if (lastFrameNanos != 0
+                && sinceLastFrame < getFrameDivisor() * framePeriodNanos - framePeriodNanos / 2) {
+            scheduleFrame();
+            return;
+        }
+        lastFrameNanos = frameTimeNanos;
+
+        if (qrBounds == null) {
+            lastFrameNanos = 0;
+            return;
+        }
+
+        // Время кадра Choreographer в той же шкале, что и SystemClock.uptimeMillis.
+        // Поза берется на момент съемки кадра превью, который сейчас на экране
+        long frameTimeMs = frameTimeNanos / 1_000_000;
+        long previewFrameTimeMs = frameTimeMs - estimatedPreviewLatencyMs;
+        framePose = poseFilter.predict(previewFrameTimeMs);
+        if (framePose != null) {
+            qrBounds = framePose.toRect();
+            recordResidualLatency(previewFrameTimeMs - poseFilter.getLastTimestampMs());
+        }
+
+        if (shouldUpdateRender(qrBounds)) {
+            updateCurrentRender(previewFrameTimeMs);
+        }
+
+        invalidate();
+
+        // Пока поза экстраполируется, обновляемся каждый кадр; иначе ждем новой детекции
+        if (poseFilter.isPredicting(previewFrameTimeMs)) {
+            scheduleFrame();
+        } else {
+            lastFrameNanos = 0;
         }
     }
 
@@ -259,16 +484,10 @@ public class AROverlayView extends View {
      */
     private boolean shouldUpdateRender(Rect currentBounds) {
         // Если это первый рендер
-        if (lastQrBounds == null || currentRenderedBitmap == null) {
+        if (lastQrBounds == null || !bufferRing.hasFrame()) {
             return true;
         }
 
-        // Проверяем время с последнего рендера
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastRenderTime < MIN_RENDER_INTERVAL_MS) {
-            return false;
-        }
-
         // Проверяем изменение масштаба
         float scaleChange = Math.abs(userScale - lastUserScale) / lastUserScale;
         if (scaleChange > SCALE_CHANGE_THRESHOLD) {
@@ -297,64 +516,112 @@ public class AROverlayView extends View {
     }
 
     /**
-     * Обновляет текущий рендер модели
+     * Ставит в очередь рендер текущей позы.
+     * Если рендер уже идет, поза заменяет ожидающую - выполнится только самая свежая
      */
-    private void updateCurrentRender() {
-        if (!isModelLoaded || cachedModelBitmap == null || isRendering.get()) {
+    private void updateCurrentRender(long poseTimestampMs) {
+        if (!isModelLoaded || cachedModelBitmap == null || qrBounds == null) {
             return;
         }
 
-        isRendering.set(true);
+        pendingRender.set(new RenderRequest(new Rect(qrBounds), userScale, poseTimestampMs));
 
-        // Сохраняем текущее состояние
-        final Rect qrBoundsCopy = new Rect(qrBounds);
-        final float currentUserScale = userScale;
+        // Текущая задача сама подхватит новую позу
+        if (!isRendering.compareAndSet(false, true)) {
+            return;
+        }
 
-        renderExecutor.execute(() -> {
-            try {
-                int viewWidth = getWidth();
-                int viewHeight = getHeight();
+        renderExecutor.execute(this::drainRenderRequests);
+    }
 
-                if (viewWidth <= 0 || viewHeight <= 0) {
-                    isRendering.set(false);
-                    return;
-                }
+    private void drainRenderRequests() {
+        try {
+            RenderRequest request;
+            while ((request = pendingRender.getAndSet(null)) != null) {
+                renderRequest(request);
+            }
+        } finally {
+            isRendering.set(false);
+        }
+
+        // Поза могла прийти между последней проверкой и сбросом флага
+        if (pendingRender.get() != null && isRendering.compareAndSet(false, true)) {
+            renderExecutor.execute(this::drainRenderRequests);
+        }
+    }
+
+    /**
+     * Рендерит одну позу в свободный буфер кольца и публикует его
+     */
+    private void renderRequest(RenderRequest request) {
+        try {
+            int viewWidth = getWidth();
+            int viewHeight = getHeight();
+
+            // Одно чтение volatile на весь рендер
+            Bitmap modelCache = cachedModelBitmap;
+            if (viewWidth <= 0 || viewHeight <= 0 || modelCache == null) {
+                return;
+            }
 
-                // Создаем bitmap размером с view
-                Bitmap newBitmap = Bitmap.createBitmap(viewWidth, viewHeight, Bitmap.Config.ARGB_8888);
-                Canvas canvas = new Canvas(newBitmap);
+            // Область view, которую займет модель в этой позе
+            updateRenderMatrix(request.qrBounds, request.userScale);
+            renderBounds.set(cachedModelContentBounds);
+            renderMatrix.mapRect(renderBounds);
+            renderBounds.roundOut(renderDirtyBounds);
+            renderDirtyBounds.inset(-DIRTY_PADDING_PX, -DIRTY_PADDING_PX);
+            if (!renderDirtyBounds.intersect(0, 0, viewWidth, viewHeight)) {
+                renderDirtyBounds.setEmpty();
+            }
 
-                // Рендерим модель в текущую позицию
-                renderModelAtPosition(canvas, qrBoundsCopy, currentUserScale);
+            // Свободный буфер размером с view (прошлая область модели в нем очищена)
+            Bitmap target = bufferRing.acquireBack(viewWidth, viewHeight, renderDirtyBounds);
+
+            // Рендерим модель в текущую позицию, только внутри грязной области
+            if (!renderDirtyBounds.isEmpty()) {
+                renderCanvas.setBitmap(target);
+                renderCanvas.save();
+                renderCanvas.clipRect(renderDirtyBounds);
+                renderCanvas.drawBitmap(modelCache, renderMatrix, renderPaint);
+                renderCanvas.restore();
+                renderCanvas.setBitmap(null);
+            }
 
-                // Атомарно обновляем текущий bitmap
-                Bitmap oldBitmap = currentRenderedBitmap;
-                currentRenderedBitmap = newBitmap;
+            // Пока рисовали, пришла более новая поза: если показанный кадр еще свежий,
+            // устаревший результат выбрасываем и сразу рисуем новую позу
+            if (pendingRender.get() != null && getDisplayedFrameAgeMs() < MAX_DISPLAYED_AGE_MS) {
+                bufferRing.cancelBack();
+                return;
+            }
 
-                // Освобождаем старый bitmap
-                if (oldBitmap != null && !oldBitmap.isRecycled()) {
-                    oldBitmap.recycle();
-                }
+            // Передаем буфер на показ; onDraw заберет его при следующей отрисовке
+            bufferRing.publishBack(request.qrBounds, request.userScale, request.poseTimestampMs);
+            displayedPoseTimestamp = request.poseTimestampMs;
 
-                // Обновляем состояние
-                lastQrBounds = new Rect(qrBoundsCopy);
-                lastUserScale = currentUserScale;
-                lastRenderTime = System.currentTimeMillis();
+            // Обновляем состояние
+            lastQrBounds = new Rect(request.qrBounds);
+            lastUserScale = request.userScale;
 
-                postInvalidate();
+            postInvalidate();
 
-            } catch (Exception e) {
-                Log.e(TAG, "Ошибка обновления рендера", e);
-            } finally {
-                isRendering.set(false);
-            }
-        });
+        } catch (Exception e) {
+            Log.e(TAG, "Ошибка обновления рендера", e);
+        }
+    }
+
+    /**
+     * Возраст позы, по которой отрисован показанный кадр, мс
+     * (время от детекции QR до текущего момента)
+     */
+    public long getDisplayedFrameAgeMs() {
+        long timestamp = displayedPoseTimestamp;
+        return timestamp > 0 ? SystemClock.uptimeMillis() - timestamp : Long.MAX_VALUE;
     }
 
     /**
-     * Рендерит модель в заданную позицию на canvas
+     * Матрица из координат кэша модели в координаты view для заданной позы
      */
-    private void renderModelAtPosition(Canvas canvas, Rect qrBounds, float scale) {
+    private void updateRenderMatrix(Rect qrBounds, float scale) {
         float qrCenterX = qrBounds.centerX();
         float qrCenterY = qrBounds.centerY();
         float qrSize = Math.max(qrBounds.width(), qrBounds.height());
@@ -363,42 +630,59 @@ public class AROverlayView extends View {
         float centerY = qrCenterY + (offsetY * qrSize);
         float modelScaleValue = qrSize * modelScale * scale * 0.8f;
 
-        // Рендерим из кэша с трансформацией
-        Matrix matrix = new Matrix();
-
         // Вычисляем масштаб от кэша к целевому размеру
         float cacheScale = modelScaleValue / (CACHE_SIZE * 0.35f);
 
-        matrix.postTranslate(-CACHE_SIZE / 2f, -CACHE_SIZE / 2f);
-        matrix.postScale(cacheScale, cacheScale);
-        matrix.postTranslate(centerX, centerY);
-
-        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
-        canvas.drawBitmap(cachedModelBitmap, matrix, paint);
+        renderMatrix.reset();
+        renderMatrix.postTranslate(-CACHE_SIZE / 2f, -CACHE_SIZE / 2f);
+        renderMatrix.postScale(cacheScale, cacheScale);
+        renderMatrix.postTranslate(centerX, centerY);
     }
 
     /**
      * Генерация кэша с текстурами
      */
     private void generateCachedModel() {
-        if (!isModelLoaded || isGeneratingCache.get()) {
+        if (!isModelLoaded) {
             return;
         }
 
-        isGeneratingCache.set(true);
+        // Кэш для этой геометрии уже в очереди
+        int generation = cacheGeneration.get();
+        if (generation == submittedCacheGeneration) {
+            return;
+        }
+        submittedCacheGeneration = generation;
 
         renderExecutor.execute(() -> {
             try {
+                // Геометрия сменилась, пока задача стояла в очереди
+                if (generation != cacheGeneration.get()) {
+                    return;
+                }
+
                 Log.d(TAG, "Генерация кэша модели (текстуры: " + useTextures + ")...");
 
                 Bitmap bitmap = Bitmap.createBitmap(CACHE_SIZE, CACHE_SIZE, Bitmap.Config.ARGB_8888);
                 Canvas canvas = new Canvas(bitmap);
+                RectF contentBounds = new RectF();
 
-                renderModelToCanvas(canvas, CACHE_SIZE, CACHE_SIZE);
+                if (!renderModelToCanvas(canvas, CACHE_SIZE, CACHE_SIZE, generation, contentBounds)) {
+                    Log.d(TAG, "Генерация кэша отменена: загружена новая модель");
+                    bitmap.recycle();
+                    return;
+                }
 
+                Bitmap oldCache = cachedModelBitmap;
+                cachedModelContentBounds.set(contentBounds);
                 cachedModelBitmap = bitmap;
                 needsRegenerateCache.set(false);
 
+                // Старый кэш используется только в этом потоке
+                if (oldCache != null && !oldCache.isRecycled()) {
+                    oldCache.recycle();
+                }
+
                 Log.d(TAG, "Кэш модели готов!");
 
                 // Принудительно обновляем рендер после генерации кэша
@@ -407,8 +691,6 @@ public class AROverlayView extends View {
 
             } catch (Exception e) {
                 Log.e(TAG, "Ошибка генерации кэша", e);
-            } finally {
-                isGeneratingCache.set(false);
             }
         });
     }
@@ -441,8 +723,12 @@ public class AROverlayView extends View {
 
     /**
      * Рендерит модель с текстурами в кэш
+     *
+     * @param outContentBounds Сюда записывается область, занятая моделью
+     * @return false, если генерация отменена сменой геометрии
      */
-    private void renderModelToCanvas(Canvas canvas, int width, int height) {
+    private boolean renderModelToCanvas(Canvas canvas, int width, int height, int generation,
+                                        RectF outContentBounds) {
         float centerX = width / 2f;
         float centerY = height / 2f;
         float scale = width * 0.35f;
@@ -456,6 +742,18 @@ public class AROverlayView extends View {
             Vector2 projected = projectVertex(transformed, scale, centerX, centerY);
 
             projectedVertices.add(new ProjectedVertex(projected, transformed.z, 0, 0));
+
+            if (i == 0) {
+                outContentBounds.set(projected.x, projected.y, projected.x, projected.y);
+            } else {
+                outContentBounds.union(projected.x, projected.y);
+            }
+        }
+
+        // Запас на обводку и сглаживание граней
+        outContentBounds.inset(-2, -2);
+        if (!outContentBounds.intersect(0, 0, width, height)) {
+            outContentBounds.setEmpty();
         }
 
         // Сортируем грани
@@ -483,7 +781,12 @@ public class AROverlayView extends View {
         Path path = new Path();
 
         // Рисуем грани
+        int drawnFaces = 0;
         for (FaceDepth fd : sortedFaces) {
+            if (++drawnFaces % CANCEL_CHECK_EVERY_FACES == 0 && generation != cacheGeneration.get()) {
+                return false;
+            }
+
             Simple3DRenderer.Face face = fd.face;
 
             Simple3DRenderer.Vector3 normal = calculateNormal(face);
@@ -516,6 +819,8 @@ public class AROverlayView extends View {
                 canvas.drawPath(path, strokePaint);
             }
         }
+
+        return true;
     }
 
     /**
@@ -557,12 +862,13 @@ public class AROverlayView extends View {
     public void clearQRPosition() {
         this.qrBounds = null;
         lastQrBounds = null;
+        displayedPoseTimestamp = 0;
+        pendingRender.set(null);
+        poseFilter.reset();
+        framePose = null;
 
-        // Освобождаем текущий рендер
-        if (currentRenderedBitmap != null && !currentRenderedBitmap.isRecycled()) {
-            currentRenderedBitmap.recycle();
-            currentRenderedBitmap = null;
-        }
+        // Скрываем текущий рендер; буферы остаются для переиспользования
+        bufferRing.clear();
 
         invalidate();
     }
@@ -580,14 +886,90 @@ public class AROverlayView extends View {
             return;
         }
 
+        // Поза, взятая на время текущего кадра дисплея
+        PoseFilter.Pose pose = framePose;
+
         if (showQR) {
-            canvas.drawRect(qrBounds, qrPaint);
+            Rect frameRect = pose != null ? pose.toRect() : qrBounds;
+            canvas.drawRect(frameRect, qrPaint);
+        }
+
+        // Рисуем только область модели из текущего буфера, смещенную в предсказанную позу
+        OverlayBufferRing.Frame frame = bufferRing.acquireFront();
+        if (frame != null && !frame.bitmap.isRecycled() && !frame.dirtyBounds.isEmpty()) {
+            Rect region = frame.dirtyBounds;
+            mappedBounds.set(region);
+
+            boolean reproject = pose != null && frame.qrBounds != null;
+            if (reproject) {
+                updateReprojectionMatrix(frame.qrBounds, frame.userScale, pose);
+                reprojectionMatrix.mapRect(mappedBounds);
+            }
+
+            // С маской человека модель рисуется в слой только своей области, из которого вырезается человек
+            boolean occlude = hasFreshPersonMask();
+            int layer = occlude ? canvas.saveLayer(mappedBounds, null) : -1;
+
+            if (reproject) {
+                canvas.save();
+                canvas.concat(reprojectionMatrix);
+                canvas.drawBitmap(frame.bitmap, region, region, bitmapPaint);
+                canvas.restore();
+            } else {
+                canvas.drawBitmap(frame.bitmap, region, region, null);
+            }
+
+            if (occlude) {
+                updatePersonMaskMatrix();
+                canvas.drawBitmap(personMask, personMaskMatrix, personMaskPaint);
+                canvas.restoreToCount(layer);
+            }
+        }
+    }
+
+    private boolean hasFreshPersonMask() {
+        return personMask != null && !personMask.isRecycled()
+                && SystemClock.uptimeMillis() - personMaskTimestamp <= PERSON_MASK_MAX_AGE_MS;
+    }
+
+    /**
+     * Матрица из координат маски (весь кадр анализа) в координаты view
+     */
+    private void updatePersonMaskMatrix() {
+        float scaleX = (float) getWidth() / personMask.getWidth();
+        float scaleY = (float) getHeight() / personMask.getHeight();
+
+        personMaskMatrix.reset();
+        if (personMaskMirrored) {
+            personMaskMatrix.setScale(-scaleX, scaleY);
+            personMaskMatrix.postTranslate(getWidth(), 0);
+        } else {
+            personMaskMatrix.setScale(scaleX, scaleY);
         }
+    }
 
-        // Рисуем текущий отрендеренный bitmap
-        if (currentRenderedBitmap != null && !currentRenderedBitmap.isRecycled()) {
-            canvas.drawBitmap(currentRenderedBitmap, 0, 0, null);
+    /**
+     * Матрица переноса модели из позы рендера в предсказанную позу.
+     * Модель масштабируется вокруг своего центра (центр QR + смещение модели)
+     */
+    private void updateReprojectionMatrix(Rect renderedBounds, float renderedScale,
+                                          PoseFilter.Pose pose) {
+        float renderedSize = Math.max(renderedBounds.width(), renderedBounds.height());
+        if (renderedSize <= 0) {
+            reprojectionMatrix.reset();
+            return;
         }
+
+        float renderedModelX = renderedBounds.exactCenterX() + offsetX * renderedSize;
+        float renderedModelY = renderedBounds.exactCenterY() + offsetY * renderedSize;
+        float modelX = pose.centerX + offsetX * pose.size;
+        float modelY = pose.centerY + offsetY * pose.size;
+        float scale = (pose.size * userScale) / (renderedSize * renderedScale);
+
+        reprojectionMatrix.reset();
+        reprojectionMatrix.postTranslate(-renderedModelX, -renderedModelY);
+        reprojectionMatrix.postScale(scale, scale);
+        reprojectionMatrix.postTranslate(modelX, modelY);
     }
 
     private Simple3DRenderer.Vector3 transformVertex(Simple3DRenderer.Vector3 v) {
@@ -680,6 +1062,21 @@ public class AROverlayView extends View {
         }
     }
 
+    /**
+     * Запрос на рендер позы (последний побеждает)
+     */
+    private static class RenderRequest {
+        final Rect qrBounds;
+        final float userScale;
+        final long poseTimestampMs;
+
+        RenderRequest(Rect qrBounds, float userScale, long poseTimestampMs) {
+            this.qrBounds = qrBounds;
+            this.userScale = userScale;
+            this.poseTimestampMs = poseTimestampMs;
+        }
+    }
+
     private static class FaceDepth {
         Simple3DRenderer.Face face;
         float depth;
@@ -703,18 +1100,28 @@ public class AROverlayView extends View {
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        isFrameScheduled = false;
+        lastFrameNanos = 0;
+    }
+
     public void cleanup() {
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        isFrameScheduled = false;
+
         if (renderExecutor != null) {
             renderExecutor.shutdown();
         }
-        if (cachedModelBitmap != null && !cachedModelBitmap.isRecycled()) {
-            cachedModelBitmap.recycle();
-            cachedModelBitmap = null;
-        }
-        if (currentRenderedBitmap != null && !currentRenderedBitmap.isRecycled()) {
-            currentRenderedBitmap.recycle();
-            currentRenderedBitmap = null;
+        Bitmap modelCache = cachedModelBitmap;
+        cachedModelBitmap = null;
+        if (modelCache != null && !modelCache.isRecycled()) {
+            modelCache.recycle();
         }
+        bufferRing.release();
+        clearPersonMask();
         if (materials != null) {
             materials.clear();
         }
@@ -0,0 +1,176 @@
+package kit.developers.kitar;
+
+import android.graphics.Rect;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+
+/**
+ * Адаптивное управление разрешением и частотой анализа кадров
+ *
+ * Измеряет задержку ML Kit и тепловое состояние устройства,
+ * подбирает разрешение ImageAnalysis по размеру QR в кадре
+ * и интервал между детекциями, чтобы уложиться в бюджет CPU
+ */
+public class AnalysisController {
+
+    private static final String TAG = "AnalysisController";
+
+    // Доступные разрешения анализа (от меньшего к большему).
+    // Все 16:9: пересчет координат кадра в экран (scaleQRBounds, LiveQRPose,
+    // маска человека в AROverlayView) считает, что поле зрения кадра не меняется
+    private static final Size[] RESOLUTIONS = {
+            new Size(960, 540),
+            new Size(1280, 720),
+            new Size(1920, 1080)
+    };
+    private static final int TIER_LOW = 0;
+    private static final int TIER_MEDIUM = 1;
+    private static final int TIER_HIGH = 2;
+
+    // Доля QR от стороны кадра, при которой хватает меньшего разрешения
+    private static final float LARGE_QR_FRACTION = 0.25f;
+    private static final float SMALL_QR_FRACTION = 0.10f;
+
+    // Интервал между детекциями ML Kit
+    private static final long BASE_DETECTION_INTERVAL_MS = 150;
+    private static final long MAX_DETECTION_INTERVAL_MS = 600;
+
+    // Доля времени, которую ML Kit может занимать поток анализа
+    private static final float CPU_BUDGET = 0.3f;
+
+    // Детекции раз в N кадров при активном трекинге
+    private static final int BASE_FRAMES_PER_DETECTION = 10;
+    private static final int THROTTLED_FRAMES_PER_DETECTION = 20;
+
+    // Защита от частой перепривязки камеры
+    private static final long MIN_REBIND_INTERVAL_MS = 3000;
+    private static final long TIER_STABLE_MS = 1000;
+
+    private static final float LATENCY_SMOOTHING = 0.2f;
+
+    private int currentTier = TIER_MEDIUM;
+    private int pendingTier = TIER_MEDIUM;
+    private long pendingTierSince = 0;
+    private long lastRebindTime = 0;
+
+    private float averageLatencyMs = 0;
+    private int thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+
+    /**
+     * Разрешение, с которым нужно создавать ImageAnalysis
+     */
+    public synchronized Size getTargetResolution() {
+        return RESOLUTIONS[currentTier];
+    }
+
+    /**
+     * Минимальный интервал между детекциями ML Kit без трекинга
+     */
+    public synchronized long getDetectionIntervalMs() {
+        // Интервал, при котором ML Kit занимает не больше CPU_BUDGET времени
+        long budgetInterval = (long) (averageLatencyMs / CPU_BUDGET);
+        long interval = Math.max(BASE_DETECTION_INTERVAL_MS, budgetInterval);
+
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            interval *= 3;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            interval *= 2;
+        }
+
+        return Math.min(interval, MAX_DETECTION_INTERVAL_MS);
+    }
+
+    /**
+     * Как часто проверять трекинг полной детекцией ML Kit
+     */
+    public synchronized int getFramesPerDetection() {
+        return thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE
+                ? THROTTLED_FRAMES_PER_DETECTION
+                : BASE_FRAMES_PER_DETECTION;
+    }
+
+    public synchronized void setThermalStatus(int status) {
+        if (status != thermalStatus) {
+            Log.d(TAG, "Тепловой статус: " + status);
+        }
+        thermalStatus = status;
+    }
+
+    /**
+     * Результат очередной детекции
+     *
+     * @param latencyMs Время работы ML Kit
+     * @param uprightBounds Границы QR в прямых координатах кадра или null, если QR не найден
+     * @param frameWidth Ширина кадра в прямых координатах
+     * @param frameHeight Высота кадра в прямых координатах
+     */
+    public synchronized void onDetection(long latencyMs, Rect uprightBounds,
+                                         int frameWidth, int frameHeight) {
+        averageLatencyMs = averageLatencyMs == 0
+                ? latencyMs
+                : averageLatencyMs + LATENCY_SMOOTHING * (latencyMs - averageLatencyMs);
+
+        int desiredTier = chooseTier(uprightBounds, frameWidth, frameHeight);
+
+        long now = SystemClock.uptimeMillis();
+        if (desiredTier != pendingTier) {
+            pendingTier = desiredTier;
+            pendingTierSince = now;
+        }
+    }
+
+    /**
+     * Проверяет, пора ли перепривязать ImageAnalysis с другим разрешением.
+     * Если да - принимает новое разрешение как текущее.
+     */
+    public synchronized boolean consumeRebindRequest() {
+        long now = SystemClock.uptimeMillis();
+
+        if (pendingTier == currentTier
+                || now - pendingTierSince < TIER_STABLE_MS
+                || now - lastRebindTime < MIN_REBIND_INTERVAL_MS) {
+            return false;
+        }
+
+        Log.d(TAG, "Разрешение анализа: " + RESOLUTIONS[currentTier] + " -> " + RESOLUTIONS[pendingTier] +
+                " (задержка ML Kit " + (int) averageLatencyMs + " мс)");
+
+        currentTier = pendingTier;
+        lastRebindTime = now;
+        return true;
+    }
+
+    private int chooseTier(Rect uprightBounds, int frameWidth, int frameHeight) {
+        int tier;
+
+        if (uprightBounds == null || frameWidth <= 0 || frameHeight <= 0) {
+            // QR потерян - ищем в исходном среднем разрешении: высокое без трекинга
+            // только греет устройство, а мелкий QR поднимет разрешение после первой детекции
+            tier = TIER_MEDIUM;
+        } else {
+            float fraction = Math.max(
+                    (float) uprightBounds.width() / frameWidth,
+                    (float) uprightBounds.height() / frameHeight
+            );
+
+            if (fraction >= LARGE_QR_FRACTION) {
+                tier = TIER_LOW;
+            } else if (fraction >= SMALL_QR_FRACTION) {
+                tier = TIER_MEDIUM;
+            } else {
+                tier = TIER_HIGH;
+            }
+        }
+
+        // При перегреве ограничиваем разрешение сверху
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            tier = TIER_LOW;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            tier = Math.min(tier, TIER_MEDIUM);
+        }
+
+        return tier;
+    }
+}
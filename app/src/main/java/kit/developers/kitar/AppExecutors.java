@@ -0,0 +1,217 @@
+package kit.developers.kitar;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Раздельные пулы потоков приложения
+ *
+ * ANALYSIS - анализ кадров (QR), наивысший приоритет, чтобы трекинг не замирал
+ * IO       - загрузка моделей, декодирование и сохранение фото
+ * RENDER   - рендеринг и композиция снимка, несколько потоков с пониженным приоритетом
+ * SEGMENTATION - маски человека для живого превью, отдельно от снимка,
+ *            чтобы не стоять в очереди за композицией
+ * SPILL    - несрочная запись на диск (сброс снимка), низший приоритет,
+ *            не задерживает IO и следующий снимок
+ *
+ * Для каждой очереди собирается статистика времени ожидания задач.
+ * Отдельный поток-сторож завершает зависшие CompletableFuture по таймауту
+ */
+public class AppExecutors {
+
+    private static final String TAG = "AppExecutors";
+
+    // Логируем ожидание, если задача простояла в очереди дольше порога
+    private static final long SLOW_WAIT_LOG_MS = 50;
+    private static final int STATS_LOG_EVERY = 100;
+
+    public enum Lane {
+        ANALYSIS,
+        IO,
+        RENDER,
+        SEGMENTATION,
+        SPILL
+    }
+
+    private final Map<Lane, ExecutorService> services = new EnumMap<>(Lane.class);
+    private final Map<Lane, QueueStats> stats = new EnumMap<>(Lane.class);
+    private final Map<Lane, Executor> timedExecutors = new EnumMap<>(Lane.class);
+
+    // Последние задачи по ключу - для отмены устаревшей работы
+    private final Map<String, Future<?>> latestTasks = new HashMap<>();
+
+    // Таймауты CompletableFuture (orTimeout есть только с API 31)
+    private final ScheduledThreadPoolExecutor watchdog = createWatchdog();
+
+    public AppExecutors() {
+        int renderThreads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+
+        services.put(Lane.ANALYSIS, createPool("analysis", 1, Process.THREAD_PRIORITY_DISPLAY));
+        services.put(Lane.IO, createPool("io", 1, Process.THREAD_PRIORITY_BACKGROUND));
+        services.put(Lane.RENDER, createPool("render", renderThreads,
+                Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE));
+        services.put(Lane.SEGMENTATION, createPool("segmentation", 1,
+                Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE));
+        services.put(Lane.SPILL, createPool("spill", 1, Process.THREAD_PRIORITY_LOWEST));
+
+        for (Lane lane : Lane.values()) {
+            stats.put(lane, new QueueStats());
+            timedExecutors.put(lane, command -> services.get(lane).execute(timed(lane, command)));
+        }
+    }
+
+    /**
+     * Executor очереди (с замером времени ожидания) - для CameraX и т.п.
+     */
+    public Executor executor(Lane lane) {
+        return timedExecutors.get(lane);
+    }
+
+    public Future<?> submit(Lane lane, Runnable task) {
+        return services.get(lane).submit(timed(lane, task));
+    }
+
+    /**
+     * Ставит задачу в очередь, отменяя предыдущую задачу с тем же ключом.
+     * Еще не начатая устаревшая задача не выполнится, начатая получит interrupt.
+     */
+    public Future<?> submitLatest(Lane lane, String key, Runnable task) {
+        synchronized (latestTasks) {
+            Future<?> previous = latestTasks.get(key);
+            if (previous != null && !previous.isDone()) {
+                previous.cancel(true);
+                Log.d(TAG, "Задача '" + key + "' заменена более новой");
+            }
+
+            Future<?> future = submit(lane, task);
+            latestTasks.put(key, future);
+            return future;
+        }
+    }
+
+    /**
+     * Завершает future значением fallback, если оно не завершилось за timeoutMs
+     * (аналог CompletableFuture.completeOnTimeout). Результат, пришедший позже,
+     * уже не будет принят: complete вернет false
+     *
+     * @return То же future
+     */
+    public <T> CompletableFuture<T> completeOnTimeout(CompletableFuture<T> future, T fallback, long timeoutMs) {
+        if (future.isDone()) {
+            return future;
+        }
+
+        ScheduledFuture<?> timeout = watchdog.schedule(() -> {
+            if (future.complete(fallback)) {
+                Log.w(TAG, "Задача не завершилась за " + timeoutMs + " мс");
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, error) -> timeout.cancel(false));
+        return future;
+    }
+
+    /**
+     * Число потоков очереди
+     */
+    public int getThreadCount(Lane lane) {
+        return ((ThreadPoolExecutor) services.get(lane)).getMaximumPoolSize();
+    }
+
+    /**
+     * Среднее время ожидания задачи в очереди, мс
+     */
+    public float getAverageWaitMs(Lane lane) {
+        return stats.get(lane).getAverageWaitMs();
+    }
+
+    public void shutdown() {
+        for (ExecutorService service : services.values()) {
+            service.shutdownNow();
+        }
+        watchdog.shutdownNow();
+        synchronized (latestTasks) {
+            latestTasks.clear();
+        }
+    }
+
+    private Runnable timed(Lane lane, Runnable task) {
+        long enqueuedAt = SystemClock.uptimeMillis();
+
+        return () -> {
+            long waitMs = SystemClock.uptimeMillis() - enqueuedAt;
+            stats.get(lane).record(lane, waitMs);
+            task.run();
+        };
+    }
+
+    private static ExecutorService createPool(String name, int threads, int priority) {
+        AtomicInteger counter = new AtomicInteger();
+
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(priority);
+                runnable.run();
+            }, "kitar-" + name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), factory);
+    }
+
+    private static ScheduledThreadPoolExecutor createWatchdog() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "kitar-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Отмененные таймауты не копятся в очереди
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Статистика ожидания в очереди
+     */
+    private static class QueueStats {
+        private long taskCount = 0;
+        private long totalWaitMs = 0;
+        private long maxWaitMs = 0;
+
+        synchronized void record(Lane lane, long waitMs) {
+            taskCount++;
+            totalWaitMs += waitMs;
+            maxWaitMs = Math.max(maxWaitMs, waitMs);
+
+            if (waitMs >= SLOW_WAIT_LOG_MS) {
+                Log.w(TAG, "Очередь " + lane + ": задача ждала " + waitMs + " мс");
+            }
+
+            if (taskCount % STATS_LOG_EVERY == 0) {
+                Log.d(TAG, "Очередь " + lane + ": задач " + taskCount +
+                        ", среднее ожидание " + getAverageWaitMs() + " мс, макс " + maxWaitMs + " мс");
+            }
+        }
+
+        synchronized float getAverageWaitMs() {
+            return taskCount > 0 ? (float) totalWaitMs / taskCount : 0f;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package kit.developers.kitar;
+
+import android.os.SystemClock;
+
+/**
+ * Перевод времени сенсора камеры в шкалу SystemClock.uptimeMillis
+ *
+ * Метка ImageProxy идет либо от CLOCK_BOOTTIME (elapsedRealtime),
+ * либо от CLOCK_MONOTONIC (uptime) - источник определяется по тому,
+ * к какой из шкал метка ближе. Заодно измеряется задержка от экспозиции
+ * кадра до его получения анализатором
+ */
+public class CameraFrameClock {
+
+    private static final long NANOS_PER_MS = 1_000_000L;
+    private static final float LATENCY_SMOOTHING = 0.1f;
+
+    // Разумный предел задержки кадра; больше - метка в другой шкале или мусор
+    private static final long MAX_FRAME_LATENCY_MS = 1000;
+
+    private float averageLatencyMs = 0;
+
+    /**
+     * Время экспозиции кадра в шкале SystemClock.uptimeMillis
+     *
+     * @param sensorTimestampNanos ImageProxy.getImageInfo().getTimestamp()
+     */
+    public long toUptimeMillis(long sensorTimestampNanos) {
+        long uptimeNanos = SystemClock.uptimeMillis() * NANOS_PER_MS;
+        long realtimeNanos = SystemClock.elapsedRealtimeNanos();
+
+        // uptime не идет во сне, поэтому разница шкал - время сна устройства
+        long realtimeOffsetNanos = realtimeNanos - uptimeNanos;
+
+        boolean isRealtime = Math.abs(realtimeNanos - sensorTimestampNanos)
+                < Math.abs(uptimeNanos - sensorTimestampNanos);
+        long frameUptimeNanos = isRealtime
+                ? sensorTimestampNanos - realtimeOffsetNanos
+                : sensorTimestampNanos;
+
+        return frameUptimeNanos / NANOS_PER_MS;
+    }
+
+    /**
+     * Кадр получен анализатором: обновляем оценку задержки
+     *
+     * @return Время экспозиции кадра в шкале SystemClock.uptimeMillis
+     */
+    public synchronized long onFrameArrived(long sensorTimestampNanos) {
+        long frameTimeMs = toUptimeMillis(sensorTimestampNanos);
+        long latencyMs = SystemClock.uptimeMillis() - frameTimeMs;
+
+        if (latencyMs >= 0 && latencyMs <= MAX_FRAME_LATENCY_MS) {
+            averageLatencyMs = averageLatencyMs == 0
+                    ? latencyMs
+                    : averageLatencyMs + LATENCY_SMOOTHING * (latencyMs - averageLatencyMs);
+        }
+
+        return frameTimeMs;
+    }
+
+    /**
+     * Средняя задержка от экспозиции кадра до его получения анализатором, мс.
+     * Задержку превью это не измеряет: кадр превью идет другим путем
+     * (Surface -> композитор), и его собственные метки здесь не видны
+     */
+    public synchronized long getAnalysisLatencyMs() {
+        return Math.round(averageLatencyMs);
+    }
+}
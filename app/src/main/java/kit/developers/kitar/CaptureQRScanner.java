@@ -0,0 +1,226 @@
+package kit.developers.kitar;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.barcode.BarcodeScanner;
+import com.google.mlkit.vision.barcode.common.Barcode;
+import com.google.mlkit.vision.common.InputImage;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск QR на снимке
+ *
+ * 1. Грубый поиск на уменьшенной яркостной копии (NV21 без цвета, с растяжкой контраста)
+ * 2. Уточнение границ в полноразмерном фрагменте вокруг найденного QR
+ *
+ * Полноразмерная копия снимка не создается. Блокирующий вызов - только из фонового потока
+ */
+public class CaptureQRScanner {
+
+    private static final String TAG = "CaptureQRScanner";
+
+    // Длинная сторона уменьшенной копии для грубого поиска
+    private static final int DETECTION_MAX_SIDE = 1024;
+
+    // Фрагмент для уточнения: QR с запасом во все стороны
+    private static final float REFINE_EXPANSION = 1.5f;
+
+    private static final long SCAN_TIMEOUT_MS = 5000;
+
+    private final BarcodeScanner barcodeScanner;
+
+    public CaptureQRScanner(BarcodeScanner barcodeScanner) {
+        this.barcodeScanner = barcodeScanner;
+    }
+
+    /**
+     * Результат: содержимое QR и его границы в прямых координатах снимка
+     */
+    public static class Result {
+        public final String rawValue;
+        public final Rect bounds;
+
+        public Result(String rawValue, Rect bounds) {
+            this.rawValue = rawValue;
+            this.bounds = bounds;
+        }
+    }
+
+    /**
+     * Ищет QR на снимке
+     *
+     * @return Первый найденный QR с границами или null
+     * @throws Exception Ошибка ML Kit или таймаут
+     */
+    public Result scan(CapturedPhoto photo) throws Exception {
+        long start = SystemClock.uptimeMillis();
+
+        Result coarse = scanDownscaled(photo);
+        if (coarse == null) {
+            Log.d(TAG, "QR не найден (" + (SystemClock.uptimeMillis() - start) + " мс)");
+            return null;
+        }
+
+        long coarseTime = SystemClock.uptimeMillis() - start;
+
+        Result refined = scanRegion(photo, coarse.bounds);
+
+        Log.d(TAG, "Поиск QR: грубый " + coarseTime + " мс, уточнение " +
+                (SystemClock.uptimeMillis() - start - coarseTime) + " мс" +
+                (refined == null ? " (не удалось, границы грубого поиска)" : ""));
+
+        if (refined != null && refined.rawValue != null) {
+            return refined;
+        }
+        return coarse;
+    }
+
+    /**
+     * Поиск на уменьшенной яркостной копии
+     */
+    private Result scanDownscaled(CapturedPhoto photo) throws Exception {
+        Bitmap source = photo.bitmap;
+        float factor = Math.min(1f,
+                (float) DETECTION_MAX_SIDE / Math.max(source.getWidth(), source.getHeight()));
+
+        // NV21 требует четных размеров
+        int width = Math.max(2, Math.round(source.getWidth() * factor) & ~1);
+        int height = Math.max(2, Math.round(source.getHeight() * factor) & ~1);
+
+        Bitmap small = Bitmap.createScaledBitmap(source, width, height, true);
+        byte[] nv21 = toLumaNv21(small);
+        if (small != source) {
+            small.recycle();
+        }
+
+        InputImage image = InputImage.fromByteArray(
+                nv21, width, height, photo.rotationDegrees, InputImage.IMAGE_FORMAT_NV21);
+
+        Barcode barcode = firstWithBounds(process(image));
+        if (barcode == null) {
+            return null;
+        }
+
+        // Координаты уменьшенной копии (прямые) -> прямые координаты снимка
+        float scaleX = (float) photo.getWidth() / (photo.rotationDegrees % 180 == 0 ? width : height);
+        float scaleY = (float) photo.getHeight() / (photo.rotationDegrees % 180 == 0 ? height : width);
+        Rect box = barcode.getBoundingBox();
+        Rect bounds = new Rect(
+                Math.round(box.left * scaleX),
+                Math.round(box.top * scaleY),
+                Math.round(box.right * scaleX),
+                Math.round(box.bottom * scaleY)
+        );
+
+        return new Result(barcode.getRawValue(), bounds);
+    }
+
+    /**
+     * Уточнение в полноразмерном фрагменте вокруг грубых границ
+     */
+    private Result scanRegion(CapturedPhoto photo, Rect uprightBounds) throws Exception {
+        // Фрагмент вокруг QR в прямых координатах -> в координатах bitmap
+        float halfWidth = uprightBounds.width() * REFINE_EXPANSION;
+        float halfHeight = uprightBounds.height() * REFINE_EXPANSION;
+        RectF region = new RectF(
+                uprightBounds.exactCenterX() - halfWidth,
+                uprightBounds.exactCenterY() - halfHeight,
+                uprightBounds.exactCenterX() + halfWidth,
+                uprightBounds.exactCenterY() + halfHeight
+        );
+
+        Matrix toBitmap = new Matrix();
+        photo.getUprightMatrix().invert(toBitmap);
+        toBitmap.mapRect(region);
+
+        Rect crop = new Rect();
+        region.roundOut(crop);
+        if (!crop.intersect(0, 0, photo.bitmap.getWidth(), photo.bitmap.getHeight())) {
+            return null;
+        }
+
+        Bitmap fragment = Bitmap.createBitmap(photo.bitmap, crop.left, crop.top, crop.width(), crop.height());
+        try {
+            InputImage image = InputImage.fromBitmap(fragment, photo.rotationDegrees);
+            Barcode barcode = firstWithBounds(process(image));
+            if (barcode == null) {
+                return null;
+            }
+
+            // Прямые координаты фрагмента -> координаты фрагмента в bitmap -> прямые координаты снимка
+            CapturedPhoto fragmentPhoto = new CapturedPhoto(fragment, photo.rotationDegrees);
+            Matrix mapping = new Matrix();
+            fragmentPhoto.getUprightMatrix().invert(mapping);
+            mapping.postTranslate(crop.left, crop.top);
+            mapping.postConcat(photo.getUprightMatrix());
+
+            RectF box = new RectF(barcode.getBoundingBox());
+            mapping.mapRect(box);
+
+            Rect bounds = new Rect();
+            box.round(bounds);
+            return new Result(barcode.getRawValue(), bounds);
+
+        } finally {
+            if (fragment != photo.bitmap) {
+                fragment.recycle();
+            }
+        }
+    }
+
+    private List<Barcode> process(InputImage image) throws Exception {
+        return Tasks.await(barcodeScanner.process(image), SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static Barcode firstWithBounds(List<Barcode> barcodes) {
+        for (Barcode barcode : barcodes) {
+            if (barcode.getBoundingBox() != null) {
+                return barcode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Яркость bitmap в формате NV21 (цвет нейтральный) с растяжкой контраста
+     * на весь диапазон - замена прежнему ColorMatrix-усилению
+     */
+    static byte[] toLumaNv21(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        byte[] nv21 = new byte[width * height * 3 / 2];
+
+        int min = 255;
+        int max = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            int luma = (77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF) + 29 * (pixel & 0xFF)) >> 8;
+            pixels[i] = luma;
+            min = Math.min(min, luma);
+            max = Math.max(max, luma);
+        }
+
+        int range = Math.max(1, max - min);
+        for (int i = 0; i < pixels.length; i++) {
+            nv21[i] = (byte) ((pixels[i] - min) * 255 / range);
+        }
+
+        // Хрома = 128 (серый)
+        for (int i = width * height; i < nv21.length; i++) {
+            nv21[i] = (byte) 128;
+        }
+
+        return nv21;
+    }
+}
@@ -0,0 +1,247 @@
+package kit.developers.kitar;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Передача готового снимка из MainActivity в PhotoPreviewActivity без кодирования
+ *
+ * Bitmap остается в памяти процесса, экран предпросмотра берет его по пути файла.
+ * На случай гибели процесса снимок параллельно сбрасывается в этот файл без потерь
+ * (сырые пиксели ARGB) - после перезапуска предпросмотр читает его.
+ * Кодирование в JPEG/HEIC происходит один раз - при сохранении в галерею
+ */
+public final class CaptureResultHolder {
+
+    private static final String TAG = "CaptureResultHolder";
+
+    private static final int SPILL_MAGIC = 0x4B415231; // "KAR1"
+
+    // Готовый сброс; недописанный - с PART_EXTENSION
+    public static final String SPILL_EXTENSION = ".raw";
+    private static final String PART_EXTENSION = ".part";
+
+    // Строк пикселей за одну запись/чтение
+    private static final int SPILL_BAND_ROWS = 64;
+
+    private static class Entry {
+        final String path;
+        final Bitmap bitmap;
+        boolean spilling;
+        boolean released;
+
+        Entry(String path, Bitmap bitmap) {
+            this.path = path;
+            this.bitmap = bitmap;
+        }
+    }
+
+    // Одновременно живет только один снимок
+    private static Entry current;
+
+    // Сбросы прошлых запусков удаляются один раз - файлы этого запуска освобождает release
+    private static boolean staleSpillsCleared = false;
+
+    private CaptureResultHolder() {
+    }
+
+    /**
+     * Публикует снимок; предыдущий освобождается
+     *
+     * @param spillFile Файл для сброса на диск - его путь служит ключом снимка
+     */
+    public static void publish(File spillFile, Bitmap bitmap) {
+        Entry entry = new Entry(spillFile.getAbsolutePath(), bitmap);
+        boolean clearStale;
+        synchronized (CaptureResultHolder.class) {
+            if (current != null) {
+                release(current.path);
+            }
+            current = entry;
+
+            clearStale = !staleSpillsCleared;
+            staleSpillsCleared = true;
+        }
+
+        if (clearStale) {
+            clearStaleSpills(spillFile);
+        }
+    }
+
+    /**
+     * Удаляет сбросы прошлых запусков (например, оставшиеся после гибели процесса),
+     * включая недописанные.
+     * Вызывается до первого сброса этого запуска, поэтому не пересекается с записью
+     */
+    private static void clearStaleSpills(File spillFile) {
+        File dir = spillFile.getParentFile();
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.equals(spillFile)
+                    && (name.endsWith(SPILL_EXTENSION) || name.endsWith(PART_EXTENSION))) {
+                file.delete();
+                Log.d(TAG, "Удален старый сброс " + name);
+            }
+        }
+    }
+
+    /**
+     * Сбрасывает опубликованный снимок на диск (вызывать в фоне после publish)
+     *
+     * Пока запись не началась, release освобождает снимок сразу; после начала -
+     * откладывает освобождение до конца записи
+     */
+    public static void spill(String path) {
+        Entry entry;
+        synchronized (CaptureResultHolder.class) {
+            entry = current != null && current.path.equals(path) ? current : null;
+            if (entry == null || entry.released) {
+                // Снимок уже освобожден release
+                return;
+            }
+            entry.spilling = true;
+        }
+
+        long start = SystemClock.uptimeMillis();
+        File file = new File(path);
+        File partial = new File(path + PART_EXTENSION);
+        try {
+            writeSpill(entry.bitmap, partial);
+            if (!partial.renameTo(file)) {
+                throw new IOException("Не удалось переименовать " + partial);
+            }
+            Log.d(TAG, "Снимок сброшен на диск за " + (SystemClock.uptimeMillis() - start) + " мс");
+        } catch (IOException e) {
+            Log.e(TAG, "Ошибка сброса снимка", e);
+            partial.delete();
+        } finally {
+            synchronized (CaptureResultHolder.class) {
+                entry.spilling = false;
+                if (entry.released) {
+                    // Снимок освободили во время записи
+                    entry.bitmap.recycle();
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Снимок по ключу: из памяти или, после гибели процесса, с диска
+     *
+     * @return null, если снимка нет нигде
+     */
+    public static Bitmap get(String path) {
+        synchronized (CaptureResultHolder.class) {
+            if (current != null && current.path.equals(path) && !current.released) {
+                return current.bitmap;
+            }
+        }
+
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            long start = SystemClock.uptimeMillis();
+            Bitmap bitmap = readSpill(file);
+            Log.d(TAG, "Снимок восстановлен с диска за " + (SystemClock.uptimeMillis() - start) + " мс");
+
+            synchronized (CaptureResultHolder.class) {
+                current = new Entry(path, bitmap);
+            }
+            return bitmap;
+
+        } catch (IOException e) {
+            Log.e(TAG, "Ошибка чтения снимка", e);
+            return null;
+        }
+    }
+
+    /**
+     * Освобождает снимок и удаляет файл сброса
+     */
+    public static synchronized void release(String path) {
+        if (current != null && current.path.equals(path)) {
+            current.released = true;
+            if (!current.spilling) {
+                current.bitmap.recycle();
+                new File(path).delete();
+            }
+            current = null;
+        } else {
+            new File(path).delete();
+        }
+    }
+
+    /**
+     * Заголовок (метка, ширина, высота) и пиксели ARGB построчно.
+     * Снимок непрозрачный, поэтому значения getPixels совпадают с буфером
+     */
+    private static void writeSpill(Bitmap bitmap, File file) throws IOException {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(SPILL_MAGIC);
+            out.writeInt(width);
+            out.writeInt(height);
+
+            int[] band = new int[width * SPILL_BAND_ROWS];
+            ByteBuffer bytes = ByteBuffer.allocate(band.length * 4).order(ByteOrder.BIG_ENDIAN);
+            IntBuffer ints = bytes.asIntBuffer();
+
+            for (int y = 0; y < height; y += SPILL_BAND_ROWS) {
+                int rows = Math.min(SPILL_BAND_ROWS, height - y);
+                bitmap.getPixels(band, 0, width, 0, y, width, rows);
+
+                ints.clear();
+                ints.put(band, 0, width * rows);
+                out.write(bytes.array(), 0, width * rows * 4);
+            }
+        }
+    }
+
+    private static Bitmap readSpill(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != SPILL_MAGIC) {
+                throw new IOException("Неизвестный формат " + file);
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+            int[] band = new int[width * SPILL_BAND_ROWS];
+            ByteBuffer bytes = ByteBuffer.allocate(band.length * 4).order(ByteOrder.BIG_ENDIAN);
+            IntBuffer ints = bytes.asIntBuffer();
+
+            for (int y = 0; y < height; y += SPILL_BAND_ROWS) {
+                int rows = Math.min(SPILL_BAND_ROWS, height - y);
+                in.readFully(bytes.array(), 0, width * rows * 4);
+
+                ints.clear();
+                ints.get(band, 0, width * rows);
+                bitmap.setPixels(band, 0, width, 0, y, width, rows);
+            }
+            return bitmap;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package kit.developers.kitar;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.util.Log;
+
+import androidx.camera.core.ImageProxy;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Снимок с камеры в ориентации сенсора + поворот до прямого положения
+ *
+ * Bitmap не поворачивается отдельной копией: поворот применяется
+ * при финальной композиции (drawUpright) или передается в ML Kit.
+ * Размеры getWidth/getHeight - в прямых координатах
+ */
+public class CapturedPhoto {
+
+    private static final String TAG = "CapturedPhoto";
+
+    // Уменьшаем (inSampleSize), только пока длинная сторона после уменьшения не меньше этой:
+    // декодированный снимок - до 2 * MAX_DECODE_SIDE - 1 по длинной стороне.
+    // Обычные 12 МП (4000 - 4624 px) декодируются без уменьшения, 48 - 50 МП - вдвое
+    private static final int MAX_DECODE_SIDE = 4096;
+
+    public final Bitmap bitmap;
+    public final int rotationDegrees;
+
+    public CapturedPhoto(Bitmap bitmap, int rotationDegrees) {
+        this.bitmap = bitmap;
+        this.rotationDegrees = rotationDegrees;
+    }
+
+    /**
+     * Декодирует JPEG из ImageProxy прямо из буфера, без копии в byte[] и без поворота
+     *
+     * @return Снимок или null при ошибке
+     */
+    public static CapturedPhoto decode(ImageProxy imageProxy) {
+        try {
+            ImageProxy.PlaneProxy[] planes = imageProxy.getPlanes();
+            if (planes.length == 0) return null;
+
+            ByteBuffer buffer = planes[0].getBuffer();
+
+            // Сначала только размеры, чтобы выбрать inSampleSize
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(new ByteBufferInputStream(buffer.duplicate()), null, options);
+
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            int sampleSize = 1;
+            while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= MAX_DECODE_SIDE) {
+                sampleSize *= 2;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inMutable = true;
+
+            Bitmap bitmap = BitmapFactory.decodeStream(
+                    new ByteBufferInputStream(buffer.duplicate()), null, options);
+            if (bitmap == null) return null;
+
+            Log.d(TAG, "Снимок " + options.outWidth + "x" + options.outHeight +
+                    " (inSampleSize " + sampleSize + "), поворот " +
+                    imageProxy.getImageInfo().getRotationDegrees());
+
+            return new CapturedPhoto(bitmap, imageProxy.getImageInfo().getRotationDegrees());
+
+        } catch (Exception e) {
+            Log.e(TAG, "Ошибка декодирования снимка", e);
+            return null;
+        }
+    }
+
+    /**
+     * Ширина в прямых координатах
+     */
+    public int getWidth() {
+        return isRotated() ? bitmap.getHeight() : bitmap.getWidth();
+    }
+
+    /**
+     * Высота в прямых координатах
+     */
+    public int getHeight() {
+        return isRotated() ? bitmap.getWidth() : bitmap.getHeight();
+    }
+
+    private boolean isRotated() {
+        return rotationDegrees == 90 || rotationDegrees == 270;
+    }
+
+    /**
+     * Матрица из координат bitmap в прямые координаты
+     */
+    public Matrix getUprightMatrix() {
+        Matrix matrix = new Matrix();
+        if (rotationDegrees != 0) {
+            matrix.postRotate(rotationDegrees);
+
+            // После поворота вокруг (0,0) возвращаем изображение в положительную область
+            switch (rotationDegrees) {
+                case 90:
+                    matrix.postTranslate(bitmap.getHeight(), 0);
+                    break;
+                case 180:
+                    matrix.postTranslate(bitmap.getWidth(), bitmap.getHeight());
+                    break;
+                case 270:
+                    matrix.postTranslate(0, bitmap.getWidth());
+                    break;
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Рисует снимок в прямом положении на canvas размером getWidth() x getHeight()
+     */
+    public void drawUpright(Canvas canvas, Paint paint) {
+        if (rotationDegrees == 0) {
+            canvas.drawBitmap(bitmap, 0, 0, paint);
+        } else {
+            canvas.drawBitmap(bitmap, getUprightMatrix(), paint);
+        }
+    }
+
+    /**
+     * InputStream поверх ByteBuffer (в том числе direct) без промежуточного массива
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
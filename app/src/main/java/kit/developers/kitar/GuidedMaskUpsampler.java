@@ -0,0 +1,175 @@
+package kit.developers.kitar;
+
+/**
+ * Увеличение маски сегментации до разрешения фото с учетом краев
+ * (joint bilateral upsampling)
+ *
+ * Вероятность в пикселе фото - взвешенное среднее соседних значений маски:
+ * вес = близость по расстоянию * близость яркости фото к яркости соседа.
+ * Поэтому край маски "прилипает" к настоящему краю на фото, а не к сетке маски.
+ *
+ * Без Android API; безопасен для параллельной обработки разных плиток
+ */
+final class GuidedMaskUpsampler {
+
+    // Окно соседей в пикселях маски: 4x4 вокруг точки
+    private static final int WINDOW_RADIUS = 2;
+
+    // Насколько разница яркости (0 - 255) снижает вес соседа
+    private static final float RANGE_SIGMA = 25f;
+
+    // Минимальный вес, чтобы на резком перепаде сумма весов не обнулялась
+    private static final float MIN_RANGE_WEIGHT = 0.01f;
+
+    // Мягкая маска почти везде чуть больше нуля: вероятность не выше порога
+    // считается фоном (альфа модели изменилась бы меньше чем на 5%),
+    // и плитки без более высоких значений пропускаются
+    private static final float PERSON_THRESHOLD = 0.05f;
+
+    private static final float[] RANGE_WEIGHTS = new float[256];
+
+    static {
+        for (int d = 0; d < RANGE_WEIGHTS.length; d++) {
+            float weight = (float) Math.exp(-(d * d) / (2f * RANGE_SIGMA * RANGE_SIGMA));
+            RANGE_WEIGHTS[d] = Math.max(weight, MIN_RANGE_WEIGHT);
+        }
+    }
+
+    private final float[] mask;
+    private final int[] guideLuma;
+    private final int maskWidth;
+    private final int maskHeight;
+    private final int regionLeft;
+    private final int regionTop;
+    private final int regionRight;
+    private final int regionBottom;
+    private final float scaleX;
+    private final float scaleY;
+
+    /**
+     * Маска покрывает прямоугольник фото (regionLeft, regionTop, regionWidth, regionHeight);
+     * вне его человека нет
+     *
+     * @param mask Вероятности человека 0.0 - 1.0 построчно
+     * @param guideLuma Яркость этой области фото, уменьшенной до размера маски
+     */
+    GuidedMaskUpsampler(float[] mask, int[] guideLuma, int maskWidth, int maskHeight,
+                        int regionLeft, int regionTop, int regionWidth, int regionHeight) {
+        this.mask = mask;
+        this.guideLuma = guideLuma;
+        this.maskWidth = maskWidth;
+        this.maskHeight = maskHeight;
+        this.regionLeft = regionLeft;
+        this.regionTop = regionTop;
+        this.regionRight = regionLeft + regionWidth;
+        this.regionBottom = regionTop + regionHeight;
+        this.scaleX = (float) maskWidth / regionWidth;
+        this.scaleY = (float) maskHeight / regionHeight;
+    }
+
+    /**
+     * Есть ли человек (вероятность выше PERSON_THRESHOLD) хотя бы рядом
+     * с прямоугольником фото - плитки без человека можно не обрабатывать
+     */
+    boolean touchesPerson(int left, int top, int right, int bottom) {
+        if (right <= regionLeft || left >= regionRight || bottom <= regionTop || top >= regionBottom) {
+            return false;
+        }
+
+        int x0 = Math.max(0, (int) ((left - regionLeft) * scaleX) - WINDOW_RADIUS);
+        int y0 = Math.max(0, (int) ((top - regionTop) * scaleY) - WINDOW_RADIUS);
+        int x1 = Math.min(maskWidth - 1, (int) ((right - regionLeft) * scaleX) + WINDOW_RADIUS);
+        int y1 = Math.min(maskHeight - 1, (int) ((bottom - regionTop) * scaleY) + WINDOW_RADIUS);
+
+        for (int y = y0; y <= y1; y++) {
+            int row = y * maskWidth;
+            for (int x = x0; x <= x1; x++) {
+                if (mask[row + x] > PERSON_THRESHOLD) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Убирает модель там, где человек: альфа модели умножается на (1 - вероятность)
+     *
+     * @param model Пиксели слоя модели в плитке (ARGB, изменяются)
+     * @param photo Пиксели фото в той же плитке (ARGB)
+     * @param left Положение плитки на фото
+     * @param top Положение плитки на фото
+     * @return Были ли изменены пиксели модели
+     */
+    boolean occlude(int[] model, int[] photo, int left, int top, int tileWidth, int tileHeight) {
+        boolean changed = false;
+
+        for (int y = 0; y < tileHeight; y++) {
+            int row = y * tileWidth;
+            for (int x = 0; x < tileWidth; x++) {
+                int i = row + x;
+                int alpha = model[i] >>> 24;
+                if (alpha == 0) {
+                    continue;
+                }
+
+                float person = sample(left + x, top + y, luma(photo[i]));
+                if (person <= PERSON_THRESHOLD) {
+                    continue;
+                }
+
+                int newAlpha = Math.round(alpha * (1f - person));
+                model[i] = (newAlpha << 24) | (model[i] & 0x00FFFFFF);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Вероятность человека в пикселе фото (x, y) с яркостью luma
+     */
+    float sample(int x, int y, int luma) {
+        if (x < regionLeft || x >= regionRight || y < regionTop || y >= regionBottom) {
+            return 0f;
+        }
+
+        // Центр пикселя фото в координатах маски
+        float fx = (x - regionLeft + 0.5f) * scaleX - 0.5f;
+        float fy = (y - regionTop + 0.5f) * scaleY - 0.5f;
+        int baseX = (int) Math.floor(fx);
+        int baseY = (int) Math.floor(fy);
+
+        float weightSum = 0f;
+        float valueSum = 0f;
+
+        for (int ny = baseY - WINDOW_RADIUS + 1; ny <= baseY + WINDOW_RADIUS; ny++) {
+            if (ny < 0 || ny >= maskHeight) {
+                continue;
+            }
+            float wy = 1f - Math.abs(fy - ny) / WINDOW_RADIUS;
+            int row = ny * maskWidth;
+
+            for (int nx = baseX - WINDOW_RADIUS + 1; nx <= baseX + WINDOW_RADIUS; nx++) {
+                if (nx < 0 || nx >= maskWidth) {
+                    continue;
+                }
+                float wx = 1f - Math.abs(fx - nx) / WINDOW_RADIUS;
+                int index = row + nx;
+
+                float weight = wx * wy * RANGE_WEIGHTS[Math.abs(luma - guideLuma[index])];
+                weightSum += weight;
+                valueSum += weight * mask[index];
+            }
+        }
+
+        if (weightSum <= 0f) {
+            return 0f;
+        }
+        return Math.min(1f, valueSum / weightSum);
+    }
+
+    static int luma(int pixel) {
+        return (77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF) + 29 * (pixel & 0xFF)) >> 8;
+    }
+}
@@ -0,0 +1,156 @@
+package kit.developers.kitar;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.segmentation.Segmentation;
+import com.google.mlkit.vision.segmentation.SegmentationMask;
+import com.google.mlkit.vision.segmentation.Segmenter;
+import com.google.mlkit.vision.segmentation.selfie.SelfieSegmenterOptions;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Сегментация человека на кадрах анализа для живого перекрытия модели в превью
+ *
+ * STREAM_MODE на уменьшенных кадрах (только яркость). Одновременно обрабатывается
+ * не больше одного кадра; маска переиспользуется несколько кадров подряд, и их число
+ * подбирается так, чтобы средняя стоимость сегментации на кадр анализа
+ * укладывалась в FRAME_BUDGET_MS
+ */
+public class LivePersonSegmenter {
+
+    private static final String TAG = "LivePersonSegmenter";
+
+    // Длинная сторона кадра для сегментации
+    public static final int INPUT_MAX_SIDE = 256;
+
+    // Бюджет на кадр анализа, мс (стоимость сегментации делится на кадры, где маска переиспользуется)
+    private static final float FRAME_BUDGET_MS = 6f;
+    private static final int MIN_REUSE_FRAMES = 2;
+    private static final int MAX_REUSE_FRAMES = 10;
+    private static final float COST_SMOOTHING = 0.2f;
+    private static final int STATS_LOG_EVERY = 50;
+
+    /**
+     * Новая маска: альфа = вероятность человека, в прямых координатах всего кадра анализа
+     */
+    public interface Listener {
+        void onPersonMask(Bitmap mask, long frameTimeMs);
+    }
+
+    private final Segmenter segmenter;
+    private final Executor executor;
+    private final Listener listener;
+
+    private final AtomicBoolean inFlight = new AtomicBoolean(false);
+    private int framesSinceRun = 0;
+    private volatile float costEmaMs = FRAME_BUDGET_MS * MIN_REUSE_FRAMES;
+    private int runCount = 0;
+
+    // Переиспользуемые массивы конвертации (доступ только из executor, по одному кадру)
+    private float[] confidences;
+    private int[] pixels;
+
+    /**
+     * @param executor Поток конвертации маски
+     * @param listener Получатель масок (вызывается на executor)
+     */
+    public LivePersonSegmenter(Executor executor, Listener listener) {
+        this.executor = executor;
+        this.listener = listener;
+
+        SelfieSegmenterOptions options =
+                new SelfieSegmenterOptions.Builder()
+                        .setDetectorMode(SelfieSegmenterOptions.STREAM_MODE)
+                        .build();
+        segmenter = Segmentation.getClient(options);
+    }
+
+    /**
+     * Пора ли сегментировать текущий кадр (вызывать на каждом кадре анализа)
+     */
+    public boolean shouldRun() {
+        if (inFlight.get()) {
+            return false;
+        }
+
+        framesSinceRun++;
+        return framesSinceRun >= getReuseFrames();
+    }
+
+    /**
+     * Число кадров, на которые растягивается одна сегментация
+     */
+    public int getReuseFrames() {
+        int frames = (int) Math.ceil(costEmaMs / FRAME_BUDGET_MS);
+        return Math.max(MIN_REUSE_FRAMES, Math.min(MAX_REUSE_FRAMES, frames));
+    }
+
+    /**
+     * Запускает сегментацию уменьшенного кадра (NV21 в системе буфера камеры)
+     *
+     * @param nv21 Буфер не должен меняться до прихода маски
+     */
+    public void process(byte[] nv21, int width, int height, int rotationDegrees, long frameTimeMs) {
+        if (!inFlight.compareAndSet(false, true)) {
+            return;
+        }
+        framesSinceRun = 0;
+
+        long start = SystemClock.uptimeMillis();
+        InputImage image = InputImage.fromByteArray(
+                nv21, width, height, rotationDegrees, InputImage.IMAGE_FORMAT_NV21);
+
+        segmenter.process(image).addOnCompleteListener(executor, task -> {
+            try {
+                if (!task.isSuccessful()) {
+                    Log.e(TAG, "Ошибка сегментации", task.getException());
+                    return;
+                }
+
+                Bitmap mask = toMaskBitmap(task.getResult());
+                recordCost(SystemClock.uptimeMillis() - start);
+                listener.onPersonMask(mask, frameTimeMs);
+
+            } finally {
+                inFlight.set(false);
+            }
+        });
+    }
+
+    private Bitmap toMaskBitmap(SegmentationMask mask) {
+        ByteBuffer buffer = mask.getBuffer();
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+
+        int count = width * height;
+        if (pixels == null || pixels.length != count) {
+            confidences = new float[count];
+            pixels = new int[count];
+        }
+        MaskConverter.toArgb(buffer.asFloatBuffer(), confidences, pixels);
+
+        Bitmap maskBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+        maskBitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return maskBitmap;
+    }
+
+    private void recordCost(long costMs) {
+        costEmaMs += (costMs - costEmaMs) * COST_SMOOTHING;
+
+        if (++runCount % STATS_LOG_EVERY == 0) {
+            Log.d(TAG, "Сегментация превью: " + String.format(Locale.US, "%.1f", costEmaMs) +
+                    " мс, маска на " + getReuseFrames() + " кадр(ов)");
+        }
+    }
+
+    public void close() {
+        segmenter.close();
+    }
+}
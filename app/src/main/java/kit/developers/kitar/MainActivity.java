@@ -4,19 +4,16 @@ import android.Manifest;
 import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.animation.ObjectAnimator;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
+import android.graphics.Point;
 import android.graphics.Rect;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
-import android.provider.MediaStore;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
@@ -49,13 +46,12 @@ import com.google.mlkit.vision.barcode.common.Barcode;
 import com.google.mlkit.vision.common.InputImage;
 
 import java.io.File;
-import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.Locale;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -68,6 +64,7 @@ public class MainActivity extends AppCompatActivity {
 
     private ModelManager modelManager;
     private SegmentationHelper segmentationHelper;
+    private LivePersonSegmenter liveSegmenter;
     private WatermarkHelper watermarkHelper;
 
     private static String[] getRequiredPermissions() {
@@ -118,14 +115,41 @@ public class MainActivity extends AppCompatActivity {
     private Camera camera;
     private CameraSelector cameraSelector;
     private int lensFacing = CameraSelector.LENS_FACING_BACK;
-    private ExecutorService cameraExecutor;
+    private AppExecutors executors;
+    private ProcessCameraProvider cameraProvider;
+    private QRAnalyzer qrAnalyzer;
+
+    // Последняя поза QR из живого трекинга - снимок может обойтись без повторного поиска
+    private volatile LiveQRPose liveQRPose;
+    private static final long LIVE_POSE_MAX_AGE_MS = 250;
+    private static final long LIVE_POSE_FALLBACK_AGE_MS = 1000;
+
+    // Запас вокруг модели для сегментации (доля стороны модели) - сегментеру нужен контекст
+    private static final float SEGMENTATION_MARGIN = 0.25f;
+
+    // Запас слоя модели на сглаживание краев, пиксели
+    private static final int MODEL_LAYER_PADDING_PX = 2;
+
+    // Если ML Kit не ответил, снимок сохраняется без перекрытия человеком
+    private static final long SEGMENTATION_TIMEOUT_MS = 10_000;
+
+    // Адаптивное разрешение и частота анализа
+    private final AnalysisController analysisController = new AnalysisController();
+    private PowerManager.OnThermalStatusChangedListener thermalStatusListener;
 
     // Other
     private BarcodeScanner barcodeScanner;
+    private CaptureQRScanner captureQRScanner;
+    private PhotoCompositor photoCompositor;
     private Simple3DRenderer model3DRenderer;
     private boolean isProcessing = false;
     private ProcessingStep currentStep = ProcessingStep.NONE;
 
+    // Длительность этапов обработки снимка, мс (рендер и сегментация идут параллельно)
+    private final Map<ProcessingStep, Long> stageTimings =
+            Collections.synchronizedMap(new EnumMap<>(ProcessingStep.class));
+    private volatile long captureStartTime = 0;
+
     private enum ProcessingStep {
         NONE,
         CAPTURING,
@@ -142,12 +166,15 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        executors = new AppExecutors();
+
         initViews();
         initManagers();
         initBarcodeScanner();
         initModel3DRenderer();
 
-        cameraExecutor = Executors.newSingleThreadExecutor();
+        initLiveSegmentation();
+        registerThermalListener();
 
         if (allPermissionsGranted()) {
             startCamera();
@@ -201,6 +228,9 @@ public class MainActivity extends AppCompatActivity {
             Log.e(TAG, "Ошибка инициализации водяного знака", e);
         }
 
+        photoCompositor = new PhotoCompositor(watermarkHelper,
+                executors.executor(AppExecutors.Lane.RENDER), executors.getThreadCount(AppExecutors.Lane.RENDER));
+
         try {
             segmentationHelper = new SegmentationHelper();
         } catch (Exception e) {
@@ -208,11 +238,28 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Сегментация кадров анализа: человек перекрывает модель уже в превью, как на снимке
+     */
+    private void initLiveSegmentation() {
+        try {
+            liveSegmenter = new LivePersonSegmenter(
+                    executors.executor(AppExecutors.Lane.SEGMENTATION),
+                    (mask, frameTimeMs) -> {
+                        boolean mirrored = lensFacing == CameraSelector.LENS_FACING_FRONT;
+                        runOnUiThread(() -> arOverlayView.setPersonMask(mask, mirrored, frameTimeMs));
+                    });
+        } catch (Exception e) {
+            Log.e(TAG, "Ошибка инициализации сегментации превью", e);
+        }
+    }
+
     private void initBarcodeScanner() {
         BarcodeScannerOptions options = new BarcodeScannerOptions.Builder()
                 .setBarcodeFormats(Barcode.FORMAT_QR_CODE)
                 .build();
         barcodeScanner = BarcodeScanning.getClient(options);
+        captureQRScanner = new CaptureQRScanner(barcodeScanner);
     }
 
     private void initModel3DRenderer() {
@@ -311,9 +358,20 @@ public class MainActivity extends AppCompatActivity {
 
                     showProcessingStep(ProcessingStep.RENDERING);
 
-                    cameraExecutor.execute(() -> {
+                    // Загрузка в IO-потоке не останавливает трекинг; новый выбор отменяет старую загрузку
+                    executors.submitLatest(AppExecutors.Lane.IO, "model-load", () -> {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+
                         boolean success = model3DRenderer.loadModel(selectedModel.getPath());
 
+                        if (Thread.currentThread().isInterrupted()) {
+                            // Модель уже загружена целиком; геометрию в оверлей передаст следующая загрузка
+                            Log.d(TAG, "Загрузка модели " + selectedModel.getName() + " отменена");
+                            return;
+                        }
+
                         runOnUiThread(() -> {
                             hideProcessing();
 
@@ -486,7 +544,74 @@ public class MainActivity extends AppCompatActivity {
         }, ContextCompat.getMainExecutor(this));
     }
 
+    private void registerThermalListener() {
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.Q) {
+            return;
+        }
+
+        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        if (powerManager == null) {
+            return;
+        }
+
+        int status = powerManager.getCurrentThermalStatus();
+        analysisController.setThermalStatus(status);
+        arOverlayView.setThermalStatus(status);
+
+        thermalStatusListener = newStatus -> {
+            analysisController.setThermalStatus(newStatus);
+            arOverlayView.setThermalStatus(newStatus);
+        };
+        powerManager.addThermalStatusListener(ContextCompat.getMainExecutor(this), thermalStatusListener);
+    }
+
+    private void unregisterThermalListener() {
+        if (thermalStatusListener == null
+                || android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.Q) {
+            return;
+        }
+
+        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        if (powerManager != null) {
+            powerManager.removeThermalStatusListener(thermalStatusListener);
+        }
+        thermalStatusListener = null;
+    }
+
+    private androidx.camera.core.ImageAnalysis buildImageAnalysis() {
+        androidx.camera.core.ImageAnalysis analysis = new androidx.camera.core.ImageAnalysis.Builder()
+                .setTargetResolution(analysisController.getTargetResolution())
+                .setBackpressureStrategy(androidx.camera.core.ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+                .build();
+
+        if (qrAnalyzer == null) {
+            qrAnalyzer = new QRAnalyzer();
+        }
+        analysis.setAnalyzer(executors.executor(AppExecutors.Lane.ANALYSIS), qrAnalyzer);
+        return analysis;
+    }
+
+    /**
+     * Перепривязывает только ImageAnalysis с новым разрешением из AnalysisController
+     */
+    private void rebindImageAnalysis() {
+        if (cameraProvider == null || cameraSelector == null || isProcessing || isFinishing()) {
+            return;
+        }
+
+        try {
+            if (imageAnalysis != null) {
+                cameraProvider.unbind(imageAnalysis);
+            }
+            imageAnalysis = buildImageAnalysis();
+            camera = cameraProvider.bindToLifecycle(this, cameraSelector, imageAnalysis);
+        } catch (Exception e) {
+            Log.e(TAG, "Ошибка перепривязки анализа", e);
+        }
+    }
+
     private void bindCameraUseCases(ProcessCameraProvider cameraProvider) {
+        this.cameraProvider = cameraProvider;
         Preview preview = new Preview.Builder().build();
 
         imageCapture = new ImageCapture.Builder()
@@ -494,12 +619,7 @@ public class MainActivity extends AppCompatActivity {
                 .setTargetRotation(getWindowManager().getDefaultDisplay().getRotation())
                 .build();
 
-        imageAnalysis = new androidx.camera.core.ImageAnalysis.Builder()
-                .setTargetResolution(new android.util.Size(1280, 720))
-                .setBackpressureStrategy(androidx.camera.core.ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
-                .build();
-
-        imageAnalysis.setAnalyzer(cameraExecutor, new QRAnalyzer());
+        imageAnalysis = buildImageAnalysis();
 
         cameraSelector = new CameraSelector.Builder()
                 .requireLensFacing(lensFacing)
@@ -528,10 +648,17 @@ public class MainActivity extends AppCompatActivity {
         showProcessingStep(ProcessingStep.CAPTURING);
         btnCapture.setEnabled(false);
 
-        imageCapture.takePicture(cameraExecutor, new ImageCapture.OnImageCapturedCallback() {
+        // Поза, которую видел пользователь в момент нажатия
+        long captureRequestTime = SystemClock.uptimeMillis();
+        LiveQRPose livePose = liveQRPose;
+
+        stageTimings.clear();
+        captureStartTime = captureRequestTime;
+
+        imageCapture.takePicture(executors.executor(AppExecutors.Lane.IO), new ImageCapture.OnImageCapturedCallback() {
             @Override
             public void onCaptureSuccess(@NonNull ImageProxy imageProxy) {
-                processImage(imageProxy);
+                processImage(imageProxy, livePose, captureRequestTime);
             }
 
             @Override
@@ -546,69 +673,59 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
-    private void processImage(ImageProxy imageProxy) {
+    private void processImage(ImageProxy imageProxy, LiveQRPose livePose, long captureRequestTime) {
         showProcessingStep(ProcessingStep.CAPTURING);
 
-        Bitmap bitmap = imageProxyToBitmap(imageProxy);
+        // Декодируем без поворота: ML Kit получает угол, композиция рисует снимок прямо
+        CapturedPhoto photo = CapturedPhoto.decode(imageProxy);
 
-        if (bitmap == null) {
+        // JPEG больше не нужен - сразу возвращаем буфер камере
+        imageProxy.close();
+        recordStage(ProcessingStep.CAPTURING, captureRequestTime);
+
+        if (photo == null) {
             runOnUiThread(() -> {
                 hideProcessing();
                 updateStatus("Ошибка обработки", "Не удалось получить изображение", R.drawable.ic_camera);
                 resetProcessing();
             });
-            imageProxy.close();
             return;
         }
 
-        showProcessingStep(ProcessingStep.SCANNING);
+        long livePoseAge = livePose != null ? captureRequestTime - livePose.timestampMs : Long.MAX_VALUE;
 
-        Bitmap enhancedBitmap = enhanceImageForQR(bitmap);
-        InputImage image = InputImage.fromBitmap(enhancedBitmap, 0);
+        // QR уже зафиксирован трекингом - берем его позу, без повторного поиска
+        if (livePoseAge <= LIVE_POSE_MAX_AGE_MS) {
+            Log.d(TAG, "Поза QR из трекинга (возраст " + livePoseAge + " мс)");
+            render3DModelAndSave(photo, livePose.toCaptureBounds(photo.getWidth(), photo.getHeight()));
+            return;
+        }
 
-        barcodeScanner.process(image)
-                .addOnSuccessListener(barcodes -> {
-                    imageProxy.close();
-                    handleBarcodeResult(barcodes, bitmap);
-                })
-                .addOnFailureListener(e -> {
-                    imageProxy.close();
-                    Log.e(TAG, "Ошибка сканирования QR", e);
-                    runOnUiThread(() -> {
-                        hideProcessing();
-                        updateStatus("Ошибка сканирования", "Попробуйте еще раз", R.drawable.ic_qr_scan);
-                        resetProcessing();
-                    });
-                });
-    }
+        showProcessingStep(ProcessingStep.SCANNING);
 
-    private Bitmap enhanceImageForQR(Bitmap bitmap) {
+        // Поиск на уменьшенной яркостной копии + уточнение в полноразмерном фрагменте
+        long scanStart = SystemClock.uptimeMillis();
+        CaptureQRScanner.Result result;
         try {
-            android.graphics.ColorMatrix cm = new android.graphics.ColorMatrix();
-            cm.set(new float[]{
-                    1.5f, 0, 0, 0, -50,
-                    0, 1.5f, 0, 0, -50,
-                    0, 0, 1.5f, 0, -50,
-                    0, 0, 0, 1, 0
-            });
-
-            android.graphics.Paint paint = new android.graphics.Paint();
-            paint.setColorFilter(new android.graphics.ColorMatrixColorFilter(cm));
-
-            Bitmap enhanced = Bitmap.createBitmap(bitmap.getWidth(),
-                    bitmap.getHeight(), bitmap.getConfig());
-            Canvas canvas = new Canvas(enhanced);
-            canvas.drawBitmap(bitmap, 0, 0, paint);
-
-            return enhanced;
+            result = captureQRScanner.scan(photo);
         } catch (Exception e) {
-            Log.e(TAG, "Ошибка улучшения изображения", e);
-            return bitmap;
+            Log.e(TAG, "Ошибка сканирования QR", e);
+            result = null;
+        }
+        recordStage(ProcessingStep.SCANNING, scanStart);
+
+        // Поиск не удался, но недавняя поза есть - лучше она, чем ошибка
+        if (result == null && livePoseAge <= LIVE_POSE_FALLBACK_AGE_MS) {
+            Log.d(TAG, "QR на снимке не найден, используем позу из трекинга (возраст " + livePoseAge + " мс)");
+            render3DModelAndSave(photo, livePose.toCaptureBounds(photo.getWidth(), photo.getHeight()));
+            return;
         }
+
+        handleBarcodeResult(result, photo);
     }
 
-    private void handleBarcodeResult(java.util.List<Barcode> barcodes, Bitmap bitmap) {
-        if (barcodes.isEmpty()) {
+    private void handleBarcodeResult(CaptureQRScanner.Result result, CapturedPhoto photo) {
+        if (result == null) {
             runOnUiThread(() -> {
                 hideProcessing();
                 updateStatus("QR не найден", "Убедитесь что QR-код виден на фото", R.drawable.ic_qr_scan);
@@ -617,9 +734,8 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        Barcode barcode = barcodes.get(0);
-        String qrUrl = barcode.getRawValue();
-        android.graphics.Rect qrBounds = barcode.getBoundingBox();
+        String qrUrl = result.rawValue;
+        android.graphics.Rect qrBounds = result.bounds;
 
         if (qrBounds == null) {
             runOnUiThread(() -> {
@@ -631,7 +747,7 @@ public class MainActivity extends AppCompatActivity {
         }
 
         if (qrUrl != null && qrUrl.trim().equals(TARGET_URL.trim())) {
-            render3DModelAndSave(bitmap, qrBounds);
+            render3DModelAndSave(photo, qrBounds);
         } else {
             runOnUiThread(() -> {
                 hideProcessing();
@@ -641,15 +757,40 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void render3DModelAndSave(Bitmap photoBitmap, android.graphics.Rect qrBounds) {
+    private void render3DModelAndSave(CapturedPhoto photo, android.graphics.Rect qrBounds) {
         showProcessingStep(ProcessingStep.RENDERING);
 
-        cameraExecutor.execute(() -> {
+        Executor renderExecutor = executors.executor(AppExecutors.Lane.RENDER);
+        executors.submit(AppExecutors.Lane.RENDER, () -> {
             try {
-                float userScale = arOverlayView.getUserScale();
-                Bitmap transparentModelBitmap = createTransparentModelBitmap(photoBitmap, qrBounds);
+                ModelPlacement placement = ModelPlacement.from(qrBounds, arOverlayView.getUserScale());
+
+                // Человек важен только там, где будет модель: сегментируем область модели с запасом,
+                // параллельно с рендером (границы известны из проекции вершин до рисования)
+                Rect segmentationRegion = getModelRegion(placement, photo.getWidth(), photo.getHeight(),
+                        SEGMENTATION_MARGIN, 0);
+                CompletableFuture<Bitmap> maskFuture = CompletableFuture.completedFuture(null);
+                if (segmentationHelper != null && segmentationRegion != null) {
+                    long segmentationStart = SystemClock.uptimeMillis();
+                    maskFuture = executors.completeOnTimeout(
+                                    segmentationHelper.extractPersonMaskAsync(photo, segmentationRegion, renderExecutor),
+                                    null, SEGMENTATION_TIMEOUT_MS)
+                            .whenComplete((mask, error) -> recordStage(ProcessingStep.SEGMENTATION, segmentationStart));
+                }
 
-                if (transparentModelBitmap == null) {
+                // Слой модели - только по ее границам на снимке, а не во весь кадр
+                long renderStart = SystemClock.uptimeMillis();
+                Rect modelRegion = getModelRegion(placement, photo.getWidth(), photo.getHeight(),
+                        0f, MODEL_LAYER_PADDING_PX);
+                Bitmap transparentModelBitmap = modelRegion != null
+                        ? createTransparentModelBitmap(modelRegion, placement)
+                        : null;
+                recordStage(ProcessingStep.RENDERING, renderStart);
+
+                if (modelRegion != null && transparentModelBitmap == null) {
+                    maskFuture.thenAccept(mask -> {
+                        if (mask != null) mask.recycle();
+                    });
                     runOnUiThread(() -> {
                         hideProcessing();
                         updateStatus("Ошибка рендеринга", "Не удалось создать 3D модель", R.drawable.ic_3d_model);
@@ -658,86 +799,136 @@ public class MainActivity extends AppCompatActivity {
                     return;
                 }
 
-                showProcessingStep(ProcessingStep.SEGMENTATION);
-
-                Bitmap resultBitmap;
-                if (segmentationHelper != null) {
-                    resultBitmap = segmentationHelper.applyModelBehindPerson(
-                            photoBitmap,
-                            transparentModelBitmap
-                    );
-                } else {
-                    resultBitmap = model3DRenderer.renderModelOnBitmap(photoBitmap, qrBounds);
+                // Поток рендера не ждет маску: композиция продолжится, когда она будет готова
+                if (!maskFuture.isDone()) {
+                    showProcessingStep(ProcessingStep.SEGMENTATION);
                 }
+                // Любой исход маски ведет в композицию - она и сбрасывает isProcessing
+                maskFuture.whenCompleteAsync((personMask, error) -> {
+                    if (error != null) {
+                        Log.e(TAG, "Маска недоступна, снимок без перекрытия", error);
+                    }
+                    composeAndSave(photo, transparentModelBitmap, modelRegion,
+                            error == null ? personMask : null, segmentationRegion);
+                }, renderExecutor);
 
-                transparentModelBitmap.recycle();
-
-                if (resultBitmap != null && watermarkHelper != null && watermarkHelper.isWatermarkLoaded()) {
-                    showProcessingStep(ProcessingStep.WATERMARK);
-                    Bitmap withWatermark = watermarkHelper.applyWatermark(resultBitmap);
+            } catch (Exception e) {
+                Log.e(TAG, "Ошибка рендеринга 3D", e);
+                runOnUiThread(() -> {
+                    hideProcessing();
+                    updateStatus("Ошибка", "Что-то пошло не так", R.drawable.ic_camera);
+                    resetProcessing();
+                });
+            }
+        });
+    }
 
-                    if (withWatermark != resultBitmap) {
-                        resultBitmap.recycle();
-                        resultBitmap = withWatermark;
-                    }
-                }
+    /**
+     * Композиция и сохранение, когда готовы и модель, и маска
+     */
+    private void composeAndSave(CapturedPhoto photo, Bitmap transparentModelBitmap, Rect modelRegion,
+                                Bitmap personMask, Rect segmentationRegion) {
+        try {
+            // Фото, модель без человека и водяной знак - в один выходной буфер
+            showProcessingStep(ProcessingStep.WATERMARK);
+            long composeStart = SystemClock.uptimeMillis();
+            Bitmap resultBitmap = photoCompositor.compose(
+                    photo, transparentModelBitmap, modelRegion, personMask, segmentationRegion);
+            recordStage(ProcessingStep.WATERMARK, composeStart);
+
+            if (transparentModelBitmap != null) {
+                transparentModelBitmap.recycle();
+            }
+            if (personMask != null) {
+                personMask.recycle();
+            }
+            // Повернутый снимок скопирован в новый буфер - полноразмерный исходник больше не нужен
+            // и не должен висеть в памяти рядом с результатом во время публикации и сброса
+            if (resultBitmap != photo.bitmap) {
+                photo.bitmap.recycle();
+            }
 
-                if (resultBitmap != null) {
-                    showProcessingStep(ProcessingStep.SAVING);
+            if (resultBitmap != null) {
+                showProcessingStep(ProcessingStep.SAVING);
+                long saveStart = SystemClock.uptimeMillis();
 
-                    // Сохраняем во временный файл
-                    String tempPath = saveTempImage(resultBitmap);
+                // Передаем снимок в предпросмотр без кодирования
+                String resultPath = publishResult(resultBitmap);
+                recordStage(ProcessingStep.SAVING, saveStart);
+                logStageTimings();
 
-                    if (tempPath != null) {
-                        // Открываем экран предпросмотра
-                        runOnUiThread(() -> {
-                            hideProcessing();
-                            openPhotoPreview(tempPath);
-                        });
-                    } else {
-                        runOnUiThread(() -> {
-                            hideProcessing();
-                            updateStatus("Ошибка сохранения", "Не удалось сохранить фото", R.drawable.ic_camera);
-                        });
-                    }
+                if (resultPath != null) {
+                    // Открываем экран предпросмотра
+                    runOnUiThread(() -> {
+                        hideProcessing();
+                        openPhotoPreview(resultPath);
+                    });
                 } else {
                     runOnUiThread(() -> {
                         hideProcessing();
-                        updateStatus("Ошибка обработки", "Попробуйте еще раз", R.drawable.ic_camera);
+                        updateStatus("Ошибка сохранения", "Не удалось сохранить фото", R.drawable.ic_camera);
                     });
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Ошибка рендеринга 3D", e);
+            } else {
                 runOnUiThread(() -> {
                     hideProcessing();
-                    updateStatus("Ошибка", "Что-то пошло не так", R.drawable.ic_camera);
+                    updateStatus("Ошибка обработки", "Попробуйте еще раз", R.drawable.ic_camera);
                 });
-            } finally {
-                runOnUiThread(this::resetProcessing);
             }
-        });
+        } catch (Exception e) {
+            Log.e(TAG, "Ошибка рендеринга 3D", e);
+            runOnUiThread(() -> {
+                hideProcessing();
+                updateStatus("Ошибка", "Что-то пошло не так", R.drawable.ic_camera);
+            });
+        } finally {
+            runOnUiThread(this::resetProcessing);
+        }
     }
 
-    // Новый метод для сохранения временного файла:
-    private String saveTempImage(Bitmap bitmap) {
+    private void recordStage(ProcessingStep step, long startTime) {
+        stageTimings.put(step, SystemClock.uptimeMillis() - startTime);
+    }
+
+    /**
+     * Логирует длительность этапов снимка и общее время от нажатия до результата
+     */
+    private void logStageTimings() {
+        StringBuilder summary = new StringBuilder("Этапы снимка:");
+        synchronized (stageTimings) {
+            for (Map.Entry<ProcessingStep, Long> entry : stageTimings.entrySet()) {
+                summary.append(' ').append(entry.getKey()).append(' ').append(entry.getValue()).append(" мс,");
+            }
+        }
+        summary.append(" всего ").append(SystemClock.uptimeMillis() - captureStartTime).append(" мс");
+        Log.d(TAG, summary.toString());
+    }
+
+    /**
+     * Публикует готовый снимок для предпросмотра и в фоне сбрасывает его на диск без потерь
+     *
+     * @return Ключ снимка (путь файла сброса) или null
+     */
+    private String publishResult(Bitmap bitmap) {
         try {
-            File tempDir = new File(getCacheDir(), "temp_photos");
-            if (!tempDir.exists()) {
-                tempDir.mkdirs();
+            File resultDir = new File(getCacheDir(), "temp_photos");
+            if (!resultDir.exists()) {
+                resultDir.mkdirs();
             }
 
-            String filename = "temp_photo_" + System.currentTimeMillis() + ".jpg";
-            File tempFile = new File(tempDir, filename);
+            File resultFile = new File(resultDir,
+                    "capture_" + System.currentTimeMillis() + CaptureResultHolder.SPILL_EXTENSION);
+            CaptureResultHolder.publish(resultFile, bitmap);
 
-            java.io.FileOutputStream fos = new java.io.FileOutputStream(tempFile);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 95, fos);
-            fos.close();
+            String resultPath = resultFile.getAbsolutePath();
+            // Сброс - в своей очереди с низшим приоритетом: IO принимает следующий снимок
+            executors.submit(AppExecutors.Lane.SPILL, () -> CaptureResultHolder.spill(resultPath));
 
-            Log.d(TAG, "Временное фото сохранено: " + tempFile.getAbsolutePath());
-            return tempFile.getAbsolutePath();
+            Log.d(TAG, "Снимок передан в предпросмотр: " + resultPath);
+            return resultPath;
 
         } catch (Exception e) {
-            Log.e(TAG, "Ошибка сохранения временного файла", e);
+            Log.e(TAG, "Ошибка передачи снимка", e);
             return null;
         }
     }
@@ -750,110 +941,51 @@ public class MainActivity extends AppCompatActivity {
         overridePendingTransition(android.R.anim.fade_in, android.R.anim.fade_out);
     }
 
-    private Bitmap createTransparentModelBitmap(Bitmap photoBitmap, android.graphics.Rect qrBounds) {
-        try {
-            int width = photoBitmap.getWidth();
-            int height = photoBitmap.getHeight();
-
-            Bitmap transparentBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(transparentBitmap);
-
-            float qrCenterX = qrBounds.centerX();
-            float qrCenterY = qrBounds.centerY();
-            float qrSize = Math.max(qrBounds.width(), qrBounds.height());
-
-            float userScale = arOverlayView.getUserScale();
-            float scale = qrSize * ModelConfig.SCALE * userScale * 0.8f;
-
-            float centerX = qrCenterX + (ModelConfig.OFFSET_X * qrSize);
-            float centerY = qrCenterY + (ModelConfig.OFFSET_Y * qrSize);
-
-            model3DRenderer.render3DToCanvas(canvas, centerX, centerY, scale);
-
-            return transparentBitmap;
-
-        } catch (Exception e) {
-            Log.e(TAG, "Ошибка создания прозрачного bitmap", e);
+    /**
+     * Границы модели на снимке с запасом, в пределах кадра
+     *
+     * @param marginFraction Запас как доля стороны модели
+     * @param paddingPx Дополнительный запас в пикселях
+     * @return null, если модель не попадает в кадр
+     */
+    private Rect getModelRegion(ModelPlacement placement, int width, int height,
+                                float marginFraction, int paddingPx) {
+        android.graphics.RectF modelBounds = model3DRenderer.computeScreenBounds(
+                placement.centerX, placement.centerY, placement.scale);
+        if (modelBounds == null) {
             return null;
         }
-    }
-
-    private Bitmap imageProxyToBitmap(ImageProxy imageProxy) {
-        try {
-            ImageProxy.PlaneProxy[] planes = imageProxy.getPlanes();
-            if (planes.length == 0) return null;
-
-            ByteBuffer buffer = planes[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-
-            Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-            if (bitmap == null) return null;
-
-            int rotation = imageProxy.getImageInfo().getRotationDegrees();
-            if (rotation != 0) {
-                Matrix matrix = new Matrix();
-                matrix.postRotate(rotation);
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
-                        bitmap.getHeight(), matrix, true);
-            }
 
-            return bitmap;
+        modelBounds.inset(-modelBounds.width() * marginFraction - paddingPx,
+                -modelBounds.height() * marginFraction - paddingPx);
 
-        } catch (Exception e) {
-            Log.e(TAG, "Ошибка конвертации изображения", e);
+        Rect region = new Rect();
+        modelBounds.roundOut(region);
+        if (!region.intersect(0, 0, width, height) || region.isEmpty()) {
             return null;
         }
+        return region;
     }
 
-    private boolean saveImageToGallery(Bitmap bitmap) {
+    /**
+     * Рендер модели в слой размером с ее область на снимке
+     *
+     * @param modelRegion Область слоя в прямых координатах снимка
+     */
+    private Bitmap createTransparentModelBitmap(Rect modelRegion, ModelPlacement placement) {
         try {
-            String filename = "QR_3D_" + new SimpleDateFormat("yyyyMMdd_HHmmss",
-                    Locale.getDefault()).format(new Date()) + ".jpg";
-
-            OutputStream fos;
-
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
-                ContentValues values = new ContentValues();
-                values.put(MediaStore.Images.Media.DISPLAY_NAME, filename);
-                values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
-                values.put(MediaStore.Images.Media.RELATIVE_PATH, Environment.DIRECTORY_PICTURES);
-
-                Uri imageUri = getContentResolver().insert(
-                        MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-
-                if (imageUri == null) return false;
-
-                fos = getContentResolver().openOutputStream(imageUri);
-                if (fos == null) return false;
-
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 95, fos);
-                fos.close();
-
-                return true;
-
-            } else {
-                java.io.File imagesDir = Environment.getExternalStoragePublicDirectory(
-                        Environment.DIRECTORY_PICTURES);
-
-                if (!imagesDir.exists()) {
-                    imagesDir.mkdirs();
-                }
+            Bitmap transparentBitmap = Bitmap.createBitmap(
+                    modelRegion.width(), modelRegion.height(), Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(transparentBitmap);
+            canvas.translate(-modelRegion.left, -modelRegion.top);
 
-                java.io.File image = new java.io.File(imagesDir, filename);
-                fos = new java.io.FileOutputStream(image);
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 95, fos);
-                fos.close();
+            model3DRenderer.render3DToCanvas(canvas, placement.centerX, placement.centerY, placement.scale);
 
-                ContentValues values = new ContentValues();
-                values.put(MediaStore.Images.Media.DATA, image.getAbsolutePath());
-                getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+            return transparentBitmap;
 
-                return true;
-            }
         } catch (Exception e) {
-            Log.e(TAG, "Ошибка сохранения", e);
-            return false;
+            Log.e(TAG, "Ошибка создания прозрачного bitmap", e);
+            return null;
         }
     }
 
@@ -898,73 +1030,235 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Поза QR из анализа кадров: границы в прямых координатах кадра анализа
+     * и время экспозиции этого кадра
+     */
+    private static class LiveQRPose {
+        final Rect bounds;
+        final int frameWidth;
+        final int frameHeight;
+        final long timestampMs;
+
+        LiveQRPose(Rect bounds, int frameWidth, int frameHeight, long timestampMs) {
+            this.bounds = new Rect(bounds);
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+            this.timestampMs = timestampMs;
+        }
+
+        /**
+         * Границы в прямых координатах снимка. Кадр анализа - центральная
+         * область того же сенсора, поэтому масштаб по стороне без обрезки
+         */
+        Rect toCaptureBounds(int captureWidth, int captureHeight) {
+            float scale = Math.min((float) captureWidth / frameWidth, (float) captureHeight / frameHeight);
+            float offsetX = (captureWidth - frameWidth * scale) / 2f;
+            float offsetY = (captureHeight - frameHeight * scale) / 2f;
+
+            return new Rect(
+                    Math.round(bounds.left * scale + offsetX),
+                    Math.round(bounds.top * scale + offsetY),
+                    Math.round(bounds.right * scale + offsetX),
+                    Math.round(bounds.bottom * scale + offsetY)
+            );
+        }
+    }
+
+    /**
+     * Положение и масштаб модели на снимке относительно QR
+     */
+    private static class ModelPlacement {
+        final float centerX;
+        final float centerY;
+        final float scale;
+
+        ModelPlacement(float centerX, float centerY, float scale) {
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.scale = scale;
+        }
+
+        static ModelPlacement from(Rect qrBounds, float userScale) {
+            float qrSize = Math.max(qrBounds.width(), qrBounds.height());
+            return new ModelPlacement(
+                    qrBounds.centerX() + (ModelConfig.OFFSET_X * qrSize),
+                    qrBounds.centerY() + (ModelConfig.OFFSET_Y * qrSize),
+                    qrSize * ModelConfig.SCALE * userScale * 0.8f
+            );
+        }
+    }
+
     private class QRAnalyzer implements androidx.camera.core.ImageAnalysis.Analyzer {
 
+        // Интервал между детекциями и их частоту при трекинге задает AnalysisController,
+        // между детекциями позу предсказывает PoseFilter в AROverlayView
         private long lastAnalyzedTimestamp = 0;
-        private static final long ANALYSIS_INTERVAL_MS = 100;
+        private static final float MIN_TRACKING_CONFIDENCE = 0.6f;
+
+        private final QRCornerTracker cornerTracker = new QRCornerTracker();
+        private int framesSinceDetection = 0;
+
+        // Время экспозиции кадров - для синхронизации оверлея с превью
+        private final CameraFrameClock frameClock = new CameraFrameClock();
 
         @OptIn(markerClass = ExperimentalGetImage.class)
         @Override
         public void analyze(@NonNull ImageProxy imageProxy) {
             long currentTimestamp = System.currentTimeMillis();
+            boolean wasTracking = cornerTracker.isTracking();
 
-            if (currentTimestamp - lastAnalyzedTimestamp < ANALYSIS_INTERVAL_MS) {
+            if (!wasTracking
+                    && currentTimestamp - lastAnalyzedTimestamp < analysisController.getDetectionIntervalMs()) {
                 imageProxy.close();
                 return;
             }
 
+            long frameTimeMs = frameClock.onFrameArrived(imageProxy.getImageInfo().getTimestamp());
+            arOverlayView.setEstimatedPreviewLatencyMs(frameClock.getAnalysisLatencyMs());
+
+            int rotation = imageProxy.getImageInfo().getRotationDegrees();
+            boolean rotated = rotation == 90 || rotation == 270;
+            int uprightWidth = rotated ? imageProxy.getHeight() : imageProxy.getWidth();
+            int uprightHeight = rotated ? imageProxy.getWidth() : imageProxy.getHeight();
+
+            // Копируем Y-плоскость и переносим углы QR на текущий кадр
+            cornerTracker.onFrame(imageProxy);
+
+            // Маска человека для превью - только пока модель на экране (поза свежая), по бюджету сегментера
+            LiveQRPose shownPose = liveQRPose;
+            boolean modelOnScreen = shownPose != null
+                    && frameTimeMs - shownPose.timestampMs <= LIVE_POSE_MAX_AGE_MS;
+            if (liveSegmenter != null && modelOnScreen && liveSegmenter.shouldRun()) {
+                QRCornerTracker.DetectionRoi frame =
+                        cornerTracker.copyDownscaledFrame(LivePersonSegmenter.INPUT_MAX_SIDE);
+                if (frame != null) {
+                    liveSegmenter.process(frame.nv21, frame.width, frame.height, rotation, frameTimeMs);
+                }
+            }
+
+            if (wasTracking
+                    && cornerTracker.getConfidence() >= MIN_TRACKING_CONFIDENCE
+                    && framesSinceDetection < analysisController.getFramesPerDetection()) {
+                framesSinceDetection++;
+
+                Rect trackedBounds = cornerTracker.getUprightBounds();
+                if (trackedBounds != null) {
+                    liveQRPose = new LiveQRPose(trackedBounds, uprightWidth, uprightHeight, frameTimeMs);
+                    Rect scaledBounds = scaleQRBounds(trackedBounds, imageProxy, arOverlayView);
+                    runOnUiThread(() -> arOverlayView.updateQRPosition(scaledBounds, frameTimeMs));
+                }
+
+                imageProxy.close();
+                return;
+            }
+
+            // Трекинг потерян или пора уточнить позу - детекция ML Kit
             lastAnalyzedTimestamp = currentTimestamp;
+            framesSinceDetection = 0;
+
+            // Если поза известна, ищем QR только в области вокруг нее
+            QRCornerTracker.DetectionRoi roi = cornerTracker.cropDetectionRoi();
+            InputImage image;
+
+            if (roi != null) {
+                // Поворот не передаем: координаты ROI остаются в системе буфера
+                image = InputImage.fromByteArray(
+                        roi.nv21,
+                        roi.width,
+                        roi.height,
+                        0,
+                        InputImage.IMAGE_FORMAT_NV21
+                );
+            } else {
+                @androidx.camera.core.ExperimentalGetImage
+                android.media.Image mediaImage = imageProxy.getImage();
 
-            @androidx.camera.core.ExperimentalGetImage
-            android.media.Image mediaImage = imageProxy.getImage();
+                if (mediaImage == null) {
+                    imageProxy.close();
+                    return;
+                }
 
-            if (mediaImage != null) {
-                InputImage image = InputImage.fromMediaImage(
+                image = InputImage.fromMediaImage(
                         mediaImage,
                         imageProxy.getImageInfo().getRotationDegrees()
                 );
+            }
+
+            long detectionStart = SystemClock.uptimeMillis();
 
-                barcodeScanner.process(image)
-                        .addOnSuccessListener(barcodes -> {
-                            if (!barcodes.isEmpty()) {
-                                Barcode barcode = barcodes.get(0);
-                                String qrUrl = barcode.getRawValue();
-                                android.graphics.Rect bounds = barcode.getBoundingBox();
-
-                                if (qrUrl != null && qrUrl.trim().equals(TARGET_URL.trim()) && bounds != null) {
-                                    Rect scaledBounds = scaleQRBounds(bounds, imageProxy, arOverlayView);
-
-                                    runOnUiThread(() -> {
-                                        arOverlayView.updateQRPosition(scaledBounds);
-                                        float scale = arOverlayView.getUserScale();
-                                        updateStatus(
-                                                "QR найден! " + String.format(Locale.getDefault(), "%.1fx", scale),
-                                                "Нажмите кнопку камеры для съемки",
-                                                R.drawable.ic_check_circle
-                                        );
-                                    });
-                                } else {
-                                    runOnUiThread(() -> {
-                                        arOverlayView.clearQRPosition();
-                                        if (qrUrl != null && !qrUrl.trim().equals(TARGET_URL.trim())) {
-                                            updateStatus("Неверный QR-код", "Используйте правильный QR-код", R.drawable.ic_qr_scan);
-                                        }
-                                    });
+            barcodeScanner.process(image)
+                    .addOnSuccessListener(barcodes -> {
+                        Rect detectedBounds = null;
+
+                        if (!barcodes.isEmpty()) {
+                            Barcode barcode = barcodes.get(0);
+                            String qrUrl = barcode.getRawValue();
+                            android.graphics.Rect bounds = barcode.getBoundingBox();
+                            Point[] cornerPoints = barcode.getCornerPoints();
+
+                            if (roi != null) {
+                                if (bounds != null) {
+                                    bounds = cornerTracker.roiToUpright(bounds, roi.bufferRect);
                                 }
+                                cornerPoints = cornerTracker.roiToUpright(cornerPoints, roi.bufferRect);
+                            }
+
+                            if (qrUrl != null && qrUrl.trim().equals(TARGET_URL.trim()) && bounds != null) {
+                                detectedBounds = bounds;
+                                cornerTracker.start(cornerPoints);
+                                liveQRPose = new LiveQRPose(bounds, uprightWidth, uprightHeight, frameTimeMs);
+                                Rect scaledBounds = scaleQRBounds(bounds, imageProxy, arOverlayView);
+
+                                runOnUiThread(() -> {
+                                    arOverlayView.updateQRPosition(scaledBounds, frameTimeMs);
+                                    float scale = arOverlayView.getUserScale();
+                                    updateStatus(
+                                            "QR найден! " + String.format(Locale.getDefault(), "%.1fx", scale),
+                                            "Нажмите кнопку камеры для съемки",
+                                            R.drawable.ic_check_circle
+                                    );
+                                });
                             } else {
+                                cornerTracker.reset();
+                                liveQRPose = null;
                                 runOnUiThread(() -> {
                                     arOverlayView.clearQRPosition();
-                                    updateStatus("Найдите QR-код", "Наведите камеру на QR-код для AR", R.drawable.ic_qr_scan);
+                                    if (qrUrl != null && !qrUrl.trim().equals(TARGET_URL.trim())) {
+                                        updateStatus("Неверный QR-код", "Используйте правильный QR-код", R.drawable.ic_qr_scan);
+                                    }
                                 });
                             }
-                        })
-                        .addOnFailureListener(e -> {
-                            Log.e(TAG, "Ошибка анализа", e);
-                        })
-                        .addOnCompleteListener(task -> imageProxy.close());
-            } else {
-                imageProxy.close();
-            }
+                        } else if (roi != null) {
+                            // Промах в ROI: следующий кадр сканируем целиком, оверлей пока не сбрасываем
+                            // (поза устареет сама, если QR не найдется)
+                            cornerTracker.reset();
+                            lastAnalyzedTimestamp = 0;
+                        } else {
+                            cornerTracker.reset();
+                            liveQRPose = null;
+                            runOnUiThread(() -> {
+                                arOverlayView.clearQRPosition();
+                                updateStatus("Найдите QR-код", "Наведите камеру на QR-код для AR", R.drawable.ic_qr_scan);
+                            });
+                        }
+
+                        // Подстраиваем разрешение анализа под размер QR и задержку ML Kit
+                        analysisController.onDetection(
+                                SystemClock.uptimeMillis() - detectionStart,
+                                detectedBounds,
+                                uprightWidth,
+                                uprightHeight
+                        );
+                        if (analysisController.consumeRebindRequest()) {
+                            runOnUiThread(MainActivity.this::rebindImageAnalysis);
+                        }
+                    })
+                    .addOnFailureListener(e -> {
+                        cornerTracker.reset();
+                        Log.e(TAG, "Ошибка анализа", e);
+                    })
+                    .addOnCompleteListener(task -> imageProxy.close());
         }
 
         private Rect scaleQRBounds(android.graphics.Rect imageBounds,
@@ -1008,7 +1302,8 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        cameraExecutor.shutdown();
+        unregisterThermalListener();
+        executors.shutdown();
         if (model3DRenderer != null) {
             model3DRenderer.destroy();
         }
@@ -1018,6 +1313,9 @@ public class MainActivity extends AppCompatActivity {
         if (segmentationHelper != null) {
             segmentationHelper.cleanup();
         }
+        if (liveSegmenter != null) {
+            liveSegmenter.close();
+        }
         if (watermarkHelper != null) {
             watermarkHelper.cleanup();
         }
@@ -0,0 +1,311 @@
+package kit.developers.kitar;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Кэш недавних масок сегментации по похожести кадра
+ *
+ * Ключ - маленькая яркостная копия области (THUMB_SIZE x THUMB_SIZE) и ее dHash.
+ * Если сцена почти не изменилась (близкий хэш, малая разница после сдвига),
+ * сохраненная маска сдвигается на найденное смещение и используется вместо
+ * новой сегментации. Хранятся копии масок: вызывающий волен освобождать свои
+ *
+ * Компромисс: копия 32x32 не видит мелких движений человека, а чужая маска дает
+ * заметно неверный край на сохраненном фото. Поэтому безопасность держится на
+ * похожести кадра - хэш, средняя и максимальная разница яркости после сдвига.
+ * Окно по времени (MAX_ENTRY_AGE_MS) лишь отсекает старые маски: между снимками
+ * подряд проходит предпросмотр, так что это десятки секунд, а не мгновения
+ */
+public class MaskCache {
+
+    private static final String TAG = "MaskCache";
+
+    private static final int CAPACITY = 4;
+
+    // Сторона яркостной копии области
+    static final int THUMB_SIZE = 32;
+
+    // dHash 9x8 -> 64 бита; допустимое число отличающихся бит
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    static final int MAX_HAMMING_DISTANCE = 6;
+
+    // Поиск сдвига в пикселях копии и допустимая разница яркости после него:
+    // средняя - шум и свет, максимальная - отсекает локальное движение (рука, голова)
+    static final int MAX_SHIFT = 3;
+    static final float MAX_MEAN_DIFFERENCE = 3f;
+    static final int MAX_PIXEL_DIFFERENCE = 20;
+
+    // Снимок -> предпросмотр -> возврат -> снимок занимает 10-30 с
+    static final long MAX_ENTRY_AGE_MS = 45_000;
+
+    // Размер области может отличаться не больше чем на 10%
+    private static final float MAX_SIZE_RATIO = 1.1f;
+
+    private static final int STATS_LOG_EVERY = 10;
+
+    private static class Entry {
+        final Key key;
+        final Bitmap mask;
+
+        Entry(Key key, Bitmap mask) {
+            this.key = key;
+            this.mask = mask;
+        }
+    }
+
+    /**
+     * Совпадение сцены: сдвиг текущей копии относительно сохраненной
+     */
+    static class Match {
+        final int dx;
+        final int dy;
+        final float difference;
+
+        Match(int dx, int dy, float difference) {
+            this.dx = dx;
+            this.dy = dy;
+            this.difference = difference;
+        }
+    }
+
+    /**
+     * Ключ области: яркостная копия и ее хэш
+     */
+    public static class Key {
+        final int[] thumbnail;
+        final long hash;
+        final int width;
+        final int height;
+        final long timestampMs;
+
+        Key(int[] thumbnail, int width, int height, long timestampMs) {
+            this.thumbnail = thumbnail;
+            this.hash = dHash(thumbnail);
+            this.width = width;
+            this.height = height;
+            this.timestampMs = timestampMs;
+        }
+    }
+
+    // Последние маски в начале
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final Paint maskPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * Ключ для области снимка
+     *
+     * @param fragment Область в координатах bitmap снимка
+     * @param rotationDegrees Поворот снимка - копия строится в прямых координатах, как маска
+     */
+    public static Key createKey(Bitmap fragment, int rotationDegrees) {
+        CapturedPhoto upright = new CapturedPhoto(fragment, rotationDegrees);
+
+        Bitmap small = Bitmap.createBitmap(THUMB_SIZE, THUMB_SIZE, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(small);
+        canvas.scale((float) THUMB_SIZE / upright.getWidth(), (float) THUMB_SIZE / upright.getHeight());
+        upright.drawUpright(canvas, new Paint(Paint.FILTER_BITMAP_FLAG));
+
+        int[] pixels = new int[THUMB_SIZE * THUMB_SIZE];
+        small.getPixels(pixels, 0, THUMB_SIZE, 0, 0, THUMB_SIZE, THUMB_SIZE);
+        small.recycle();
+
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = GuidedMaskUpsampler.luma(pixels[i]);
+        }
+        return new Key(pixels, upright.getWidth(), upright.getHeight(), SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Маска для похожей области, сдвинутая под текущий кадр
+     *
+     * @return Новая маска (вызывающий владеет ей) или null
+     */
+    public synchronized Bitmap lookup(Key key) {
+        Entry best = null;
+        Match bestMatch = null;
+
+        for (Entry entry : entries) {
+            Match match = match(key, entry.key);
+            if (match != null && (bestMatch == null || match.difference < bestMatch.difference)) {
+                best = entry;
+                bestMatch = match;
+            }
+        }
+
+        if (best == null) {
+            misses++;
+            logStats();
+            return null;
+        }
+
+        // Недавно использованная - в начало
+        entries.remove(best);
+        entries.addFirst(best);
+
+        hits++;
+        logStats();
+        Log.d(TAG, "Маска из кэша, сдвиг " + bestMatch.dx + "," + bestMatch.dy +
+                ", разница " + String.format(Locale.US, "%.1f", bestMatch.difference));
+
+        return shifted(best.mask,
+                bestMatch.dx * (float) best.mask.getWidth() / THUMB_SIZE,
+                bestMatch.dy * (float) best.mask.getHeight() / THUMB_SIZE);
+    }
+
+    /**
+     * Проверка, что текущая область - та же сцена, что и сохраненная
+     *
+     * @return Лучший сдвиг, прошедший все пороги, или null
+     */
+    static Match match(Key current, Key cached) {
+        if (current.timestampMs - cached.timestampMs > MAX_ENTRY_AGE_MS
+                || !similarSize(cached, current)
+                || Long.bitCount(cached.hash ^ current.hash) > MAX_HAMMING_DISTANCE) {
+            return null;
+        }
+
+        // Сдвиг сцены: текущая копия в (x, y) ~ сохраненная в (x - dx, y - dy)
+        Match best = null;
+        for (int dy = -MAX_SHIFT; dy <= MAX_SHIFT; dy++) {
+            for (int dx = -MAX_SHIFT; dx <= MAX_SHIFT; dx++) {
+                float difference = meanDifference(current.thumbnail, cached.thumbnail, dx, dy);
+                if ((best == null || difference < best.difference)
+                        && maxDifference(current.thumbnail, cached.thumbnail, dx, dy) <= MAX_PIXEL_DIFFERENCE) {
+                    best = new Match(dx, dy, difference);
+                }
+            }
+        }
+
+        return best != null && best.difference <= MAX_MEAN_DIFFERENCE ? best : null;
+    }
+
+    /**
+     * Сохраняет копию маски для области
+     */
+    public synchronized void put(Key key, Bitmap mask) {
+        Bitmap copy = mask.copy(Bitmap.Config.ALPHA_8, false);
+        if (copy == null) {
+            return;
+        }
+
+        entries.addFirst(new Entry(key, copy));
+        while (entries.size() > CAPACITY) {
+            entries.removeLast().mask.recycle();
+        }
+    }
+
+    public synchronized float getHitRate() {
+        int total = hits + misses;
+        return total > 0 ? (float) hits / total : 0f;
+    }
+
+    public synchronized void clear() {
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            iterator.next().mask.recycle();
+            iterator.remove();
+        }
+    }
+
+    private Bitmap shifted(Bitmap mask, float dx, float dy) {
+        // Открывшийся край остается прозрачным (без человека)
+        Bitmap result = Bitmap.createBitmap(mask.getWidth(), mask.getHeight(), Bitmap.Config.ALPHA_8);
+        new Canvas(result).drawBitmap(mask, dx, dy, maskPaint);
+        return result;
+    }
+
+    private void logStats() {
+        int total = hits + misses;
+        if (total % STATS_LOG_EVERY == 0) {
+            Log.d(TAG, "Кэш масок: попаданий " + hits + "/" + total +
+                    " (" + Math.round(getHitRate() * 100) + "%)");
+        }
+    }
+
+    private static boolean similarSize(Key cached, Key key) {
+        float widthRatio = (float) Math.max(cached.width, key.width) / Math.max(1, Math.min(cached.width, key.width));
+        float heightRatio = (float) Math.max(cached.height, key.height) / Math.max(1, Math.min(cached.height, key.height));
+        return widthRatio <= MAX_SIZE_RATIO && heightRatio <= MAX_SIZE_RATIO;
+    }
+
+    /**
+     * Средняя разница яркости current(x, y) и cached(x - dx, y - dy) по перекрытию
+     */
+    private static float meanDifference(int[] current, int[] cached, int dx, int dy) {
+        long sum = 0;
+        int count = 0;
+
+        for (int y = Math.max(0, dy); y < Math.min(THUMB_SIZE, THUMB_SIZE + dy); y++) {
+            int currentRow = y * THUMB_SIZE;
+            int cachedRow = (y - dy) * THUMB_SIZE;
+            for (int x = Math.max(0, dx); x < Math.min(THUMB_SIZE, THUMB_SIZE + dx); x++) {
+                sum += Math.abs(current[currentRow + x] - cached[cachedRow + x - dx]);
+                count++;
+            }
+        }
+        return count > 0 ? (float) sum / count : Float.MAX_VALUE;
+    }
+
+    /**
+     * Наибольшая разница яркости current(x, y) и cached(x - dx, y - dy) по перекрытию
+     */
+    private static int maxDifference(int[] current, int[] cached, int dx, int dy) {
+        int max = 0;
+
+        for (int y = Math.max(0, dy); y < Math.min(THUMB_SIZE, THUMB_SIZE + dy); y++) {
+            int currentRow = y * THUMB_SIZE;
+            int cachedRow = (y - dy) * THUMB_SIZE;
+            for (int x = Math.max(0, dx); x < Math.min(THUMB_SIZE, THUMB_SIZE + dx); x++) {
+                max = Math.max(max, Math.abs(current[currentRow + x] - cached[cachedRow + x - dx]));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * dHash: копия усредняется до 9x8, бит = яркость растет слева направо
+     */
+    static long dHash(int[] thumbnail) {
+        int[] cells = new int[HASH_WIDTH * HASH_HEIGHT];
+        for (int cy = 0; cy < HASH_HEIGHT; cy++) {
+            int y0 = cy * THUMB_SIZE / HASH_HEIGHT;
+            int y1 = (cy + 1) * THUMB_SIZE / HASH_HEIGHT;
+            for (int cx = 0; cx < HASH_WIDTH; cx++) {
+                int x0 = cx * THUMB_SIZE / HASH_WIDTH;
+                int x1 = (cx + 1) * THUMB_SIZE / HASH_WIDTH;
+
+                int sum = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        sum += thumbnail[y * THUMB_SIZE + x];
+                    }
+                }
+                cells[cy * HASH_WIDTH + cx] = sum / Math.max(1, (y1 - y0) * (x1 - x0));
+            }
+        }
+
+        long hash = 0;
+        int bit = 0;
+        for (int cy = 0; cy < HASH_HEIGHT; cy++) {
+            for (int cx = 0; cx < HASH_WIDTH - 1; cx++) {
+                if (cells[cy * HASH_WIDTH + cx] < cells[cy * HASH_WIDTH + cx + 1]) {
+                    hash |= 1L << bit;
+                }
+                bit++;
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,46 @@
+package kit.developers.kitar;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Преобразование маски сегментации (вероятности 0.0 - 1.0) в пиксели
+ *
+ * Без Android API, поэтому проверяется обычными JVM тестами
+ */
+public final class MaskConverter {
+
+    private static final int PERSON_RGB = 0x00FFFFFF;
+
+    private MaskConverter() {
+    }
+
+    /**
+     * Читает вероятности пачкой и заполняет массив ARGB пикселей:
+     * вероятность становится альфой (мягкий край без порога)
+     *
+     * @param confidences Вероятности, читаются с текущей позиции
+     * @param scratch Буфер для пачки вероятностей, не меньше out.length
+     * @param out Пиксели маски построчно
+     */
+    public static void toArgb(FloatBuffer confidences, float[] scratch, int[] out) {
+        int count = out.length;
+        confidences.get(scratch, 0, count);
+
+        for (int i = 0; i < count; i++) {
+            out[i] = (toAlpha(scratch[i]) << 24) | PERSON_RGB;
+        }
+    }
+
+    /**
+     * Вероятность 0.0 - 1.0 -> альфа 0 - 255
+     */
+    public static int toAlpha(float confidence) {
+        if (confidence <= 0f) {
+            return 0;
+        }
+        if (confidence >= 1f) {
+            return 255;
+        }
+        return Math.round(confidence * 255f);
+    }
+}
@@ -0,0 +1,163 @@
+package kit.developers.kitar;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+/**
+ * Кольцо переиспользуемых буферов оверлея (тройная буферизация)
+ *
+ * back  - в него рисует поток рендера
+ * ready - последний готовый кадр, еще не забранный onDraw
+ * front - кадр, который сейчас показывает onDraw
+ *
+ * Все три индекса всегда разные, поэтому поток рендера никогда
+ * не пишет в bitmap, который рисуется на экране, а bitmap не
+ * пересоздаются на каждый кадр
+ *
+ * Каждый буфер помнит область, в которую в него рисовали (dirtyBounds):
+ * очищается и показывается только она, а не весь bitmap размером с view
+ */
+public class OverlayBufferRing {
+
+    private static final int BUFFER_COUNT = 3;
+
+    private final Frame[] frames = new Frame[BUFFER_COUNT];
+    private int front = -1;
+    private int ready = -1;
+    private int back = -1;
+
+    // Только для потока рендера (очистка back-буфера)
+    private final Canvas clearCanvas = new Canvas();
+
+    /**
+     * Берет свободный буфер для рендера (поток рендера).
+     * В буфере очищается область прошлого рендера; при смене размера view он пересоздается.
+     *
+     * @param dirtyBounds Область, в которую будет рисовать рендер (координаты view)
+     */
+    public synchronized Bitmap acquireBack(int width, int height, Rect dirtyBounds) {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            if (i == front || i == ready) {
+                continue;
+            }
+
+            Frame frame = frames[i];
+            if (frame == null
+                    || frame.bitmap.isRecycled()
+                    || frame.bitmap.getWidth() != width
+                    || frame.bitmap.getHeight() != height) {
+                // Этот буфер не показывается и не ждет показа - его можно освободить
+                if (frame != null && !frame.bitmap.isRecycled()) {
+                    frame.bitmap.recycle();
+                }
+                frame = new Frame(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+                frames[i] = frame;
+            } else if (!frame.dirtyBounds.isEmpty()) {
+                clearRegion(frame.bitmap, frame.dirtyBounds);
+            }
+
+            // Запоминаем сразу: даже отмененный рендер оставит пиксели в этой области
+            frame.dirtyBounds.set(dirtyBounds);
+            back = i;
+            return frame.bitmap;
+        }
+
+        // Недостижимо: из трех буферов максимум два заняты front и ready
+        return null;
+    }
+
+    /**
+     * Публикует нарисованный back-буфер как готовый кадр (поток рендера).
+     * Непоказанный предыдущий готовый кадр возвращается в кольцо.
+     */
+    public synchronized void publishBack(Rect qrBounds, float userScale, long poseTimestampMs) {
+        if (back < 0) {
+            return;
+        }
+
+        Frame frame = frames[back];
+        frame.qrBounds = new Rect(qrBounds);
+        frame.userScale = userScale;
+        frame.poseTimestampMs = poseTimestampMs;
+
+        ready = back;
+        back = -1;
+    }
+
+    /**
+     * Отказ от рендера в back-буфер (результат устарел)
+     */
+    public synchronized void cancelBack() {
+        back = -1;
+    }
+
+    /**
+     * Кадр для отрисовки (UI поток). Если есть готовый кадр - он становится front.
+     *
+     * @return Текущий front-кадр или null
+     */
+    public synchronized Frame acquireFront() {
+        if (ready >= 0) {
+            front = ready;
+            ready = -1;
+        }
+        return front >= 0 ? frames[front] : null;
+    }
+
+    /**
+     * Есть ли кадр для показа (готовый или уже показанный)
+     */
+    public synchronized boolean hasFrame() {
+        return front >= 0 || ready >= 0;
+    }
+
+    /**
+     * Скрывает текущие кадры, не освобождая память буферов
+     */
+    public synchronized void clear() {
+        front = -1;
+        ready = -1;
+    }
+
+    /**
+     * Освобождает все буферы (после остановки потока рендера)
+     */
+    public synchronized void release() {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            if (frames[i] != null && !frames[i].bitmap.isRecycled()) {
+                frames[i].bitmap.recycle();
+            }
+            frames[i] = null;
+        }
+        front = -1;
+        ready = -1;
+        back = -1;
+    }
+
+    private void clearRegion(Bitmap bitmap, Rect region) {
+        clearCanvas.setBitmap(bitmap);
+        clearCanvas.save();
+        clearCanvas.clipRect(region);
+        clearCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        clearCanvas.restore();
+        clearCanvas.setBitmap(null);
+    }
+
+    /**
+     * Буфер и поза, в которой он отрисован
+     */
+    public static class Frame {
+        public final Bitmap bitmap;
+        public final Rect dirtyBounds = new Rect(); // Область с моделью, вне ее буфер прозрачный
+        public Rect qrBounds;
+        public float userScale;
+        public long poseTimestampMs;
+
+        Frame(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+}
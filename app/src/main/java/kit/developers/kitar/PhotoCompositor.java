@@ -0,0 +1,279 @@
+package kit.developers.kitar;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+/**
+ * Итоговая композиция снимка в один выходной буфер
+ *
+ * фото -> слой модели, из которого вырезан человек -> водяной знак
+ *
+ * Человек не извлекается отдельным слоем: альфа модели умножается на
+ * (1 - вероятность человека), и в этих местах остается фото. Маска мягкая
+ * (вероятности, а не порог) и увеличивается до разрешения фото по краям
+ * самого фото (GuidedMaskUpsampler) - без ступенек и ореолов.
+ * Маска может покрывать только часть фото вокруг модели - остальное не трогается.
+ * Обработка идет плитками параллельно в пуле RENDER, плитки без модели или без человека пропускаются.
+ * В памяти одновременно только выходной буфер и слой модели размером с ее область
+ */
+public class PhotoCompositor {
+
+    private static final String TAG = "PhotoCompositor";
+
+    // Сторона плитки для параллельной обработки маски
+    private static final int TILE_SIZE = 128;
+
+    private final WatermarkHelper watermarkHelper;
+    private final Executor tileExecutor;
+    private final int parallelism;
+
+    private final Paint photoPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint modelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * @param tileExecutor Пул для плиток (RENDER) - не общий ForkJoinPool
+     * @param parallelism Число потоков этого пула
+     */
+    public PhotoCompositor(WatermarkHelper watermarkHelper, Executor tileExecutor, int parallelism) {
+        this.watermarkHelper = watermarkHelper;
+        this.tileExecutor = tileExecutor;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Плитка слоя модели с обновленной альфой
+     */
+    private static class Tile {
+        final int left;
+        final int top;
+        final int width;
+        final int height;
+        final int[] pixels;
+
+        Tile(int left, int top, int width, int height, int[] pixels) {
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+
+    /**
+     * Собирает итоговое изображение
+     *
+     * @param photo Снимок; если он уже прямой и изменяемый, его bitmap становится
+     *              выходным буфером - после вызова снимок использовать нельзя
+     * @param modelLayer Слой модели (изменяется: из него вырезается человек) или null, если модели нет в кадре
+     * @param modelRegion Область фото в прямых координатах, которую покрывает слой модели
+     * @param personMask Маска человека (альфа = вероятность) любого размера или null
+     * @param maskRegion Область фото в прямых координатах, которую покрывает маска;
+     *                   null - весь кадр
+     * @return Итоговое изображение (изменяемое)
+     */
+    public synchronized Bitmap compose(CapturedPhoto photo, Bitmap modelLayer, Rect modelRegion,
+                                       Bitmap personMask, Rect maskRegion) {
+        int width = photo.getWidth();
+        int height = photo.getHeight();
+
+        // 1. Фон: сам снимок, если его можно рисовать на месте
+        Bitmap output;
+        if (photo.rotationDegrees == 0 && photo.bitmap.isMutable()
+                && photo.bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            output = photo.bitmap;
+        } else {
+            output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            photo.drawUpright(new Canvas(output), photoPaint);
+        }
+
+        // 2. Убираем модель там, где человек; края маски - по яркости фона
+        if (modelLayer != null && personMask != null) {
+            Rect region = new Rect(modelRegion);
+            if (maskRegion == null || region.intersect(maskRegion)) {
+                occludeModel(modelLayer, modelRegion, output, personMask,
+                        maskRegion != null ? maskRegion : new Rect(0, 0, width, height), region);
+            }
+        }
+
+        Canvas canvas = new Canvas(output);
+
+        // 3. Модель поверх фона - в своей области
+        if (modelLayer != null) {
+            canvas.drawBitmap(modelLayer, modelRegion.left, modelRegion.top, modelPaint);
+        }
+
+        // 4. Водяной знак - в тот же буфер
+        if (watermarkHelper != null && watermarkHelper.isWatermarkLoaded()) {
+            watermarkHelper.drawWatermark(canvas, width, height);
+        }
+
+        Log.d(TAG, "Композиция " + width + "x" + height +
+                (output == photo.bitmap ? " (в буфере снимка)" : "") +
+                (personMask != null ? ", маска " + personMask.getWidth() + "x" + personMask.getHeight() : ""));
+
+        return output;
+    }
+
+    /**
+     * Умножает альфу модели на (1 - вероятность человека) в разрешении фото
+     *
+     * @param modelRegion Область фото, которую покрывает слой модели
+     * @param maskRegion Область фото, которую покрывает маска
+     * @param region Пересечение этих областей - только оно обрабатывается
+     */
+    private void occludeModel(Bitmap modelLayer, Rect modelRegion, Bitmap photo, Bitmap personMask,
+                              Rect maskRegion, Rect region) {
+        long start = SystemClock.uptimeMillis();
+
+        int maskWidth = personMask.getWidth();
+        int maskHeight = personMask.getHeight();
+
+        // Вероятности из альфы маски
+        int[] maskPixels = new int[maskWidth * maskHeight];
+        personMask.getPixels(maskPixels, 0, maskWidth, 0, 0, maskWidth, maskHeight);
+        float[] confidences = new float[maskPixels.length];
+        for (int i = 0; i < maskPixels.length; i++) {
+            confidences[i] = (maskPixels[i] >>> 24) / 255f;
+        }
+
+        // Яркость области фото в разрешении маски - опорные значения для соседей маски
+        Bitmap guide = Bitmap.createBitmap(maskWidth, maskHeight, Bitmap.Config.ARGB_8888);
+        new Canvas(guide).drawBitmap(photo, maskRegion, new Rect(0, 0, maskWidth, maskHeight), photoPaint);
+        int[] guidePixels = new int[maskWidth * maskHeight];
+        guide.getPixels(guidePixels, 0, maskWidth, 0, 0, maskWidth, maskHeight);
+        guide.recycle();
+        for (int i = 0; i < guidePixels.length; i++) {
+            guidePixels[i] = GuidedMaskUpsampler.luma(guidePixels[i]);
+        }
+
+        GuidedMaskUpsampler upsampler = new GuidedMaskUpsampler(
+                confidences, guidePixels, maskWidth, maskHeight,
+                maskRegion.left, maskRegion.top, maskRegion.width(), maskRegion.height());
+
+        int columns = (region.width() + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (region.height() + TILE_SIZE - 1) / TILE_SIZE;
+
+        // Считаем плитки параллельно, записываем в bitmap последовательно
+        List<Tile> changed = processTiles(columns * rows, index -> occludeTile(modelLayer, modelRegion, photo, upsampler,
+                region.left + (index % columns) * TILE_SIZE,
+                region.top + (index / columns) * TILE_SIZE,
+                region.right, region.bottom));
+
+        for (Tile tile : changed) {
+            modelLayer.setPixels(tile.pixels, 0, tile.width,
+                    tile.left - modelRegion.left, tile.top - modelRegion.top, tile.width, tile.height);
+        }
+
+        Log.d(TAG, "Маска " + maskWidth + "x" + maskHeight + " -> " + region.width() + "x" + region.height() +
+                ": плиток изменено " + changed.size() + "/" + (columns * rows) +
+                " за " + (SystemClock.uptimeMillis() - start) + " мс");
+    }
+
+    /**
+     * Считает плитки в пуле RENDER. Вызывающий поток тоже берет плитки,
+     * поэтому вызов из самого пула не ждет, пока освободятся другие потоки
+     *
+     * @return Измененные плитки
+     */
+    private List<Tile> processTiles(int count, IntFunction<Tile> task) {
+        Tile[] results = new Tile[count];
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < count) {
+                try {
+                    results[index] = task.apply(index);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+
+        int helpers = Math.min(parallelism - 1, count - 1);
+        for (int i = 0; i < helpers; i++) {
+            tileExecutor.execute(worker);
+        }
+        worker.run();
+
+        // Плитки, взятые другими потоками, короткие - ждем их и при interrupt
+        boolean interrupted = false;
+        while (done.getCount() > 0) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        List<Tile> changed = new ArrayList<>();
+        for (Tile tile : results) {
+            if (tile != null) {
+                changed.add(tile);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param left Плитка в координатах фото; слой модели смещен на modelRegion
+     * @return Плитка с новой альфой или null, если модель в ней не изменилась
+     */
+    private static Tile occludeTile(Bitmap modelLayer, Rect modelRegion, Bitmap photo,
+                                    GuidedMaskUpsampler upsampler,
+                                    int left, int top, int right, int bottom) {
+        int tileWidth = Math.min(TILE_SIZE, right - left);
+        int tileHeight = Math.min(TILE_SIZE, bottom - top);
+
+        if (!upsampler.touchesPerson(left, top, left + tileWidth, top + tileHeight)) {
+            return null;
+        }
+
+        int[] model = new int[tileWidth * tileHeight];
+        modelLayer.getPixels(model, 0, tileWidth,
+                left - modelRegion.left, top - modelRegion.top, tileWidth, tileHeight);
+        if (isTransparent(model)) {
+            return null;
+        }
+
+        int[] background = new int[tileWidth * tileHeight];
+        photo.getPixels(background, 0, tileWidth, left, top, tileWidth, tileHeight);
+
+        if (!upsampler.occlude(model, background, left, top, tileWidth, tileHeight)) {
+            return null;
+        }
+        return new Tile(left, top, tileWidth, tileHeight, model);
+    }
+
+    private static boolean isTransparent(int[] pixels) {
+        for (int pixel : pixels) {
+            if ((pixel >>> 24) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,247 @@
+package kit.developers.kitar;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.heifwriter.HeifWriter;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Кодирование итоговых фото
+ *
+ * HEIC через HeifWriter (аппаратный HEVC-кодер, Android 9+), если он есть на устройстве;
+ * иначе - JPEG через Bitmap.compress. Если HEIC не удался на конкретном снимке,
+ * этот снимок кодируется в JPEG
+ */
+public class PhotoEncoder {
+
+    private static final String TAG = "PhotoEncoder";
+
+    public static final int DEFAULT_QUALITY = 95;
+
+    // Ожидание завершения аппаратного кодера
+    private static final long HEIF_STOP_TIMEOUT_MS = 5000;
+
+    public enum Format {
+        JPEG("image/jpeg", ".jpg"),
+        HEIC("image/heic", ".heic");
+
+        public final String mimeType;
+        public final String extension;
+
+        Format(String mimeType, String extension) {
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+    }
+
+    private static Boolean heicSupported;
+
+    private final Format format;
+    private final int quality;
+
+    /**
+     * @param preferred Желаемый формат; HEIC без поддержки заменяется на JPEG
+     * @param quality Качество 0 - 100
+     */
+    public PhotoEncoder(Format preferred, int quality) {
+        this.format = preferred == Format.HEIC && !isHeicSupported() ? Format.JPEG : preferred;
+        this.quality = Math.max(0, Math.min(100, quality));
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Есть ли аппаратный HEVC-кодер для HeifWriter
+     */
+    public static synchronized boolean isHeicSupported() {
+        if (heicSupported == null) {
+            heicSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && hasHevcEncoder();
+            Log.d(TAG, "HEIC " + (heicSupported ? "доступен" : "недоступен"));
+        }
+        return heicSupported;
+    }
+
+    private static boolean hasHevcEncoder() {
+        try {
+            for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+                if (!info.isEncoder() || !isHardwareCodec(info)) {
+                    continue;
+                }
+                for (String type : info.getSupportedTypes()) {
+                    if (type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_HEVC)
+                            || type.equalsIgnoreCase("image/vnd.android.heic")) {
+                        Log.d(TAG, "HEVC-кодер: " + info.getName());
+                        return true;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Ошибка поиска HEVC-кодера", e);
+        }
+        return false;
+    }
+
+    /**
+     * Программные кодеры (c2.android.*, OMX.google.*) кодируют 12 МП заметно дольше JPEG -
+     * с ними HEIC не выбираем
+     */
+    private static boolean isHardwareCodec(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        String name = info.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+    }
+
+    /**
+     * Кодирует в файл
+     *
+     * @return Формат, в котором записан файл, или null при ошибке
+     */
+    public Format encode(Bitmap bitmap, File file) {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            return encode(bitmap, out.getFD(), out);
+        } catch (IOException e) {
+            Log.e(TAG, "Ошибка записи " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Сохраняет в галерею (Pictures) с именем baseName + расширение формата
+     *
+     * @return true при успехе
+     */
+    public boolean saveToGallery(ContentResolver resolver, Bitmap bitmap, String baseName) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                ContentValues values = new ContentValues();
+                values.put(MediaStore.Images.Media.DISPLAY_NAME, baseName + format.extension);
+                values.put(MediaStore.Images.Media.MIME_TYPE, format.mimeType);
+                values.put(MediaStore.Images.Media.RELATIVE_PATH, Environment.DIRECTORY_PICTURES);
+
+                Uri imageUri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+                if (imageUri == null) return false;
+
+                // "rw": HeifWriter (MediaMuxer) требует дескриптор с перемоткой,
+                // запасной JPEG обрезает файл - в режиме "w" это не везде поддерживается
+                ParcelFileDescriptor pfd = resolver.openFileDescriptor(imageUri, "rw");
+                if (pfd == null) return false;
+
+                // Поток сам закрывает дескриптор
+                try (FileOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd)) {
+                    Format written = encode(bitmap, out.getFD(), out);
+                    if (written == null) {
+                        resolver.delete(imageUri, null, null);
+                        return false;
+                    }
+                    if (written != format) {
+                        // Запасной JPEG: поправляем тип файла
+                        ContentValues fix = new ContentValues();
+                        fix.put(MediaStore.Images.Media.MIME_TYPE, written.mimeType);
+                        fix.put(MediaStore.Images.Media.DISPLAY_NAME, baseName + written.extension);
+                        resolver.update(imageUri, fix, null, null);
+                    }
+                    return true;
+                }
+
+            } else {
+                File imagesDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+                if (!imagesDir.exists()) {
+                    imagesDir.mkdirs();
+                }
+
+                File image = new File(imagesDir, baseName + format.extension);
+                Format written = encode(bitmap, image);
+                if (written == null) {
+                    return false;
+                }
+                if (written != format) {
+                    File renamed = new File(imagesDir, baseName + written.extension);
+                    if (image.renameTo(renamed)) {
+                        image = renamed;
+                    }
+                }
+
+                ContentValues values = new ContentValues();
+                values.put(MediaStore.Images.Media.DATA, image.getAbsolutePath());
+                values.put(MediaStore.Images.Media.MIME_TYPE, written.mimeType);
+                resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+                return true;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Ошибка сохранения в галерею", e);
+            return false;
+        }
+    }
+
+    /**
+     * HeifWriter пишет в дескриптор, Bitmap.compress - в поток того же файла
+     */
+    private Format encode(Bitmap bitmap, FileDescriptor fd, FileOutputStream out) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        Format written = format;
+
+        if (format == Format.HEIC && !encodeHeic(bitmap, fd)) {
+            // HEIC мог записать часть данных - начинаем файл заново
+            out.getChannel().truncate(0);
+            out.getChannel().position(0);
+            written = Format.JPEG;
+        }
+
+        if (written == Format.JPEG && !bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+            return null;
+        }
+        out.flush();
+
+        Log.d(TAG, written + " " + bitmap.getWidth() + "x" + bitmap.getHeight() + " q" + quality +
+                ": " + (SystemClock.uptimeMillis() - start) + " мс, " +
+                out.getChannel().size() / 1024 + " КБ");
+        return written;
+    }
+
+    private boolean encodeHeic(Bitmap bitmap, FileDescriptor fd) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+            return false;
+        }
+
+        HeifWriter writer = null;
+        try {
+            writer = new HeifWriter.Builder(fd, bitmap.getWidth(), bitmap.getHeight(), HeifWriter.INPUT_MODE_BITMAP)
+                    .setQuality(quality)
+                    .setMaxImages(1)
+                    .build();
+            writer.start();
+            writer.addBitmap(bitmap);
+            writer.stop(HEIF_STOP_TIMEOUT_MS);
+            return true;
+
+        } catch (Exception e) {
+            Log.e(TAG, "HEIC не удался, кодируем в JPEG", e);
+            return false;
+
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}
@@ -1,15 +1,10 @@
 package kit.developers.kitar;
 
-import android.content.ContentValues;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.graphics.PointF;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -22,9 +17,6 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.cardview.widget.CardView;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -100,16 +92,8 @@ public class PhotoPreviewActivity extends AppCompatActivity {
         }
 
         try {
-            File file = new File(photoPath);
-            if (!file.exists()) {
-                Toast.makeText(this, "Файл не найден", Toast.LENGTH_SHORT).show();
-                finish();
-                return;
-            }
-
-            FileInputStream fis = new FileInputStream(file);
-            photoBitmap = BitmapFactory.decodeStream(fis);
-            fis.close();
+            // Снимок из памяти; после перезапуска процесса - из файла сброса
+            photoBitmap = CaptureResultHolder.get(photoPath);
 
             if (photoBitmap != null) {
                 previewImage.setImageBitmap(photoBitmap);
@@ -121,7 +105,7 @@ public class PhotoPreviewActivity extends AppCompatActivity {
                     animatePreviewIn();
                 });
             } else {
-                Toast.makeText(this, "Ошибка декодирования фото", Toast.LENGTH_SHORT).show();
+                Toast.makeText(this, "Фото не найдено", Toast.LENGTH_SHORT).show();
                 finish();
             }
 
@@ -419,54 +403,12 @@ public class PhotoPreviewActivity extends AppCompatActivity {
     }
 
     private boolean saveImageToGallery(Bitmap bitmap) {
-        try {
-            String filename = "QR_3D_" + new SimpleDateFormat("yyyyMMdd_HHmmss",
-                    Locale.getDefault()).format(new Date()) + ".jpg";
-
-            OutputStream fos;
-
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
-                ContentValues values = new ContentValues();
-                values.put(MediaStore.Images.Media.DISPLAY_NAME, filename);
-                values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
-                values.put(MediaStore.Images.Media.RELATIVE_PATH, Environment.DIRECTORY_PICTURES);
-
-                Uri imageUri = getContentResolver().insert(
-                        MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-
-                if (imageUri == null) return false;
-
-                fos = getContentResolver().openOutputStream(imageUri);
-                if (fos == null) return false;
-
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 95, fos);
-                fos.close();
-
-                return true;
-
-            } else {
-                File imagesDir = Environment.getExternalStoragePublicDirectory(
-                        Environment.DIRECTORY_PICTURES);
-
-                if (!imagesDir.exists()) {
-                    imagesDir.mkdirs();
-                }
-
-                File image = new File(imagesDir, filename);
-                fos = new java.io.FileOutputStream(image);
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 95, fos);
-                fos.close();
+        String baseName = "QR_3D_" + new SimpleDateFormat("yyyyMMdd_HHmmss",
+                Locale.getDefault()).format(new Date());
 
-                ContentValues values = new ContentValues();
-                values.put(MediaStore.Images.Media.DATA, image.getAbsolutePath());
-                getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-
-                return true;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Ошибка сохранения", e);
-            return false;
-        }
+        // HEIC там, где есть аппаратный кодер, иначе JPEG
+        PhotoEncoder encoder = new PhotoEncoder(PhotoEncoder.Format.HEIC, PhotoEncoder.DEFAULT_QUALITY);
+        return encoder.saveToGallery(getContentResolver(), bitmap, baseName);
     }
 
     private void showLoading(boolean show) {
@@ -496,9 +438,6 @@ public class PhotoPreviewActivity extends AppCompatActivity {
                 .setDuration(300)
                 .withEndAction(() -> {
                     new android.os.Handler().postDelayed(() -> {
-                        // Удаляем временный файл
-                        deleteTempFile();
-
                         // Возвращаемся на главный экран
                         Intent intent = new Intent();
                         intent.putExtra("photo_saved", true);
@@ -511,35 +450,30 @@ public class PhotoPreviewActivity extends AppCompatActivity {
     }
 
     private void retakePhoto() {
-        // Удаляем временный файл
-        deleteTempFile();
-
         // Возвращаемся на главный экран
         setResult(RESULT_CANCELED);
         finish();
         overridePendingTransition(android.R.anim.fade_in, android.R.anim.fade_out);
     }
 
-    private void deleteTempFile() {
-        try {
-            if (photoPath != null && !photoPath.isEmpty()) {
-                File file = new File(photoPath);
-                if (file.exists()) {
-                    file.delete();
-                    Log.d(TAG, "Временный файл удален");
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Ошибка удаления временного файла", e);
+    /**
+     * Освобождает снимок и его файл сброса
+     */
+    private void releasePhoto() {
+        if (photoPath != null && !photoPath.isEmpty()) {
+            previewImage.setImageDrawable(null);
+            photoBitmap = null;
+            CaptureResultHolder.release(photoPath);
+            Log.d(TAG, "Снимок освобожден");
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (photoBitmap != null && !photoBitmap.isRecycled()) {
-            photoBitmap.recycle();
-            photoBitmap = null;
+        // При пересоздании экрана снимок остается в CaptureResultHolder
+        if (isFinishing()) {
+            releasePhoto();
         }
     }
 
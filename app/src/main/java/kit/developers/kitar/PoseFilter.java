@@ -0,0 +1,222 @@
+package kit.developers.kitar;
+
+import android.graphics.Rect;
+
+/**
+ * Сглаживание и предсказание позиции QR-кода между детекциями
+ * One Euro фильтр по центру и размеру QR + экстраполяция по скорости
+ *
+ * Метки времени - время экспозиции кадра камеры, поэтому позу можно
+ * запросить и на момент чуть в прошлом (кадр превью на экране):
+ * она интерполируется по истории отфильтрованных поз
+ */
+public class PoseFilter {
+
+    // Параметры фильтра (частоты среза в Гц)
+    private static final float MIN_CUTOFF = 1.0f;        // Сглаживание в покое
+    private static final float BETA = 0.005f;            // Насколько быстро фильтр "догоняет" при движении
+    private static final float DERIVATIVE_CUTOFF = 1.0f; // Сглаживание скорости
+
+    // Максимальное время экстраполяции после последней детекции
+    private static final long MAX_PREDICTION_MS = 150;
+
+    // История отфильтрованных поз для запросов в прошлое
+    private static final int HISTORY_SIZE = 8;
+    private final float[] historyCenterX = new float[HISTORY_SIZE];
+    private final float[] historyCenterY = new float[HISTORY_SIZE];
+    private final float[] historySize = new float[HISTORY_SIZE];
+    private final long[] historyTimestampMs = new long[HISTORY_SIZE];
+    private int historyCount = 0;
+    private int historyHead = 0; // Индекс самой свежей записи
+
+    private final Channel centerX = new Channel();
+    private final Channel centerY = new Channel();
+    private final Channel size = new Channel();
+
+    private float aspectRatio = 1.0f; // height / width последнего QR
+    private long lastTimestampMs = -1;
+
+    /**
+     * Добавляет новое измерение позиции QR
+     *
+     * @param bounds Границы QR в координатах view
+     * @param timestampMs Время экспозиции кадра (шкала SystemClock.uptimeMillis)
+     */
+    public synchronized void update(Rect bounds, long timestampMs) {
+        float measuredSize = Math.max(bounds.width(), bounds.height());
+        if (measuredSize <= 0) {
+            return;
+        }
+
+        float dt = lastTimestampMs < 0 ? 0 : (timestampMs - lastTimestampMs) / 1000f;
+        if (lastTimestampMs >= 0 && dt <= 0) {
+            return;
+        }
+
+        centerX.filter(bounds.exactCenterX(), dt);
+        centerY.filter(bounds.exactCenterY(), dt);
+        size.filter(measuredSize, dt);
+
+        aspectRatio = bounds.width() > 0 ? (float) bounds.height() / bounds.width() : 1.0f;
+        lastTimestampMs = timestampMs;
+
+        historyHead = (historyHead + 1) % HISTORY_SIZE;
+        historyCenterX[historyHead] = centerX.value;
+        historyCenterY[historyHead] = centerY.value;
+        historySize[historyHead] = size.value;
+        historyTimestampMs[historyHead] = timestampMs;
+        historyCount = Math.min(historyCount + 1, HISTORY_SIZE);
+    }
+
+    /**
+     * Возвращает позу на момент времени timeMs или null, если измерений еще не было.
+     * После последнего измерения поза экстраполируется, до него - интерполируется по истории
+     */
+    public synchronized Pose predict(long timeMs) {
+        if (lastTimestampMs < 0) {
+            return null;
+        }
+
+        if (timeMs < lastTimestampMs && historyCount > 1) {
+            return interpolate(timeMs);
+        }
+
+        long elapsed = Math.max(0, Math.min(timeMs - lastTimestampMs, MAX_PREDICTION_MS));
+        float seconds = elapsed / 1000f;
+
+        return new Pose(
+                centerX.value + centerX.derivative * seconds,
+                centerY.value + centerY.derivative * seconds,
+                Math.max(1f, size.value + size.derivative * seconds),
+                aspectRatio,
+                lastTimestampMs + elapsed
+        );
+    }
+
+    /**
+     * true, пока экстраполяция еще меняет позу (есть скорость и не истек горизонт)
+     */
+    public synchronized boolean isPredicting(long timeMs) {
+        if (lastTimestampMs < 0 || timeMs - lastTimestampMs > MAX_PREDICTION_MS) {
+            return false;
+        }
+        return centerX.derivative != 0 || centerY.derivative != 0 || size.derivative != 0;
+    }
+
+    /**
+     * Время последнего измерения или -1
+     */
+    public synchronized long getLastTimestampMs() {
+        return lastTimestampMs;
+    }
+
+    public synchronized void reset() {
+        centerX.reset();
+        centerY.reset();
+        size.reset();
+        lastTimestampMs = -1;
+        historyCount = 0;
+    }
+
+    private Pose interpolate(long timeMs) {
+        int newer = historyHead;
+
+        for (int i = 1; i < historyCount; i++) {
+            int older = (historyHead - i + HISTORY_SIZE) % HISTORY_SIZE;
+            long olderTime = historyTimestampMs[older];
+
+            if (timeMs >= olderTime) {
+                long span = historyTimestampMs[newer] - olderTime;
+                float t = span > 0 ? (float) (timeMs - olderTime) / span : 1f;
+                return new Pose(
+                        lerp(historyCenterX[older], historyCenterX[newer], t),
+                        lerp(historyCenterY[older], historyCenterY[newer], t),
+                        lerp(historySize[older], historySize[newer], t),
+                        aspectRatio,
+                        timeMs
+                );
+            }
+            newer = older;
+        }
+
+        // Запрос старше всей истории - отдаем самую старую позу
+        return new Pose(historyCenterX[newer], historyCenterY[newer], historySize[newer],
+                aspectRatio, historyTimestampMs[newer]);
+    }
+
+    private static float lerp(float from, float to, float t) {
+        return from + (to - from) * t;
+    }
+
+    /**
+     * Поза QR: центр и размер (максимальная сторона) в координатах view
+     */
+    public static class Pose {
+        public final float centerX;
+        public final float centerY;
+        public final float size;
+        public final float aspectRatio;
+        public final long timestampMs;
+
+        public Pose(float centerX, float centerY, float size, float aspectRatio, long timestampMs) {
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.size = size;
+            this.aspectRatio = aspectRatio;
+            this.timestampMs = timestampMs;
+        }
+
+        public Rect toRect() {
+            float halfWidth;
+            float halfHeight;
+            if (aspectRatio <= 1.0f) {
+                halfWidth = size / 2f;
+                halfHeight = size * aspectRatio / 2f;
+            } else {
+                halfWidth = size / aspectRatio / 2f;
+                halfHeight = size / 2f;
+            }
+            return new Rect(
+                    Math.round(centerX - halfWidth),
+                    Math.round(centerY - halfHeight),
+                    Math.round(centerX + halfWidth),
+                    Math.round(centerY + halfHeight)
+            );
+        }
+    }
+
+    /**
+     * Один канал One Euro фильтра (значение + сглаженная производная)
+     */
+    private static class Channel {
+        float value;
+        float derivative; // единиц в секунду
+        boolean initialized = false;
+
+        void filter(float measurement, float dt) {
+            if (!initialized || dt <= 0) {
+                value = measurement;
+                derivative = 0;
+                initialized = true;
+                return;
+            }
+
+            float rawDerivative = (measurement - value) / dt;
+            derivative += alpha(DERIVATIVE_CUTOFF, dt) * (rawDerivative - derivative);
+
+            float cutoff = MIN_CUTOFF + BETA * Math.abs(derivative);
+            value += alpha(cutoff, dt) * (measurement - value);
+        }
+
+        void reset() {
+            value = 0;
+            derivative = 0;
+            initialized = false;
+        }
+
+        private static float alpha(float cutoff, float dt) {
+            float tau = 1.0f / (2 * (float) Math.PI * cutoff);
+            return 1.0f / (1.0f + tau / dt);
+        }
+    }
+}
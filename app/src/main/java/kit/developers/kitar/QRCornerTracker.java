@@ -0,0 +1,582 @@
+package kit.developers.kitar;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import androidx.camera.core.ImageProxy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Трекер углов QR-кода между полными детекциями ML Kit
+ * Пирамидальный Lucas-Kanade по Y-плоскости кадра ImageAnalysis,
+ * плюс вырезка области интереса вокруг последней позы для ML Kit
+ *
+ * Углы хранятся в координатах буфера (без учета поворота),
+ * наружу отдаются в "прямых" координатах, как у ML Kit
+ */
+public class QRCornerTracker {
+
+    private static final int PYRAMID_LEVELS = 4;
+    private static final int WINDOW_RADIUS = 7;          // Окно 15x15
+    private static final int MAX_ITERATIONS = 10;
+    private static final float EPSILON = 0.03f;          // Сходимость, в пикселях
+    private static final float MIN_EIGEN_DETERMINANT = 1e-3f;
+    private static final float MAX_POINT_ERROR = 25f;    // Средняя разница яркости в окне
+    private static final float MIN_AREA_RATIO = 0.7f;    // Допустимое изменение площади QR за кадр
+    private static final float MAX_AREA_RATIO = 1.4f;
+
+    // Область интереса для повторной детекции ML Kit вокруг последней позы
+    private static final float ROI_EXPANSION = 2.0f;     // ROI = размер QR * 2
+    private static final int MIN_ROI_SIZE = 160;
+
+    private static final int CORNERS = 4;
+    private static final int WINDOW_SIZE = (2 * WINDOW_RADIUS + 1) * (2 * WINDOW_RADIUS + 1);
+
+    // Пирамиды текущего и предыдущего кадра (переиспользуются между кадрами)
+    private byte[][] currentPyramid;
+    private byte[][] previousPyramid;
+    private int[] levelWidths;
+    private int[] levelHeights;
+    private boolean hasPreviousFrame = false;
+
+    private int frameWidth;
+    private int frameHeight;
+    private int rotationDegrees;
+
+    // x0, y0, x1, y1, ... в координатах буфера
+    private final float[] corners = new float[CORNERS * 2];
+    private final float[] trackedCorners = new float[CORNERS * 2];
+    private boolean isTracking = false;
+    private boolean hasLastKnownCorners = false;
+    private float confidence = 0f;
+
+    // NV21 буферы для ROI и уменьшенного кадра (переиспользуются, хрома заполнена нейтральным серым)
+    private byte[] roiBuffer;
+    private byte[] downscaledBuffer;
+    private final Rect roiRect = new Rect();
+
+    // Окно предыдущего кадра и его градиенты (считаются один раз на уровень)
+    private final float[] windowValues = new float[WINDOW_SIZE];
+    private final float[] windowGradX = new float[WINDOW_SIZE];
+    private final float[] windowGradY = new float[WINDOW_SIZE];
+
+    /**
+     * Копирует Y-плоскость кадра, строит пирамиду и, если трекинг активен,
+     * переносит углы с предыдущего кадра на текущий
+     */
+    public synchronized void onFrame(ImageProxy imageProxy) {
+        int width = imageProxy.getWidth();
+        int height = imageProxy.getHeight();
+        rotationDegrees = imageProxy.getImageInfo().getRotationDegrees();
+
+        if (width != frameWidth || height != frameHeight || currentPyramid == null) {
+            // Новое разрешение анализа: старые координаты углов больше не действительны
+            allocatePyramids(width, height);
+            hasPreviousFrame = false;
+            isTracking = false;
+            hasLastKnownCorners = false;
+        }
+
+        // Меняем местами буферы: текущий кадр становится предыдущим
+        byte[][] swap = previousPyramid;
+        previousPyramid = currentPyramid;
+        currentPyramid = swap;
+
+        copyLumaPlane(imageProxy.getPlanes()[0], currentPyramid[0], width, height);
+        buildPyramid(currentPyramid);
+
+        if (isTracking && hasPreviousFrame) {
+            trackCorners();
+        }
+        hasPreviousFrame = true;
+    }
+
+    /**
+     * Запускает трекинг по углам, найденным ML Kit на текущем кадре
+     *
+     * @param cornerPoints Углы QR в прямых координатах (как возвращает ML Kit)
+     */
+    public synchronized void start(Point[] cornerPoints) {
+        if (cornerPoints == null || cornerPoints.length < CORNERS || currentPyramid == null) {
+            stop();
+            return;
+        }
+
+        for (int i = 0; i < CORNERS; i++) {
+            float[] buffer = uprightToBuffer(cornerPoints[i].x, cornerPoints[i].y);
+            corners[i * 2] = buffer[0];
+            corners[i * 2 + 1] = buffer[1];
+        }
+
+        isTracking = true;
+        hasLastKnownCorners = true;
+        confidence = 1f;
+    }
+
+    /**
+     * Останавливает трекинг, но запоминает последние углы для детекции по ROI
+     */
+    public synchronized void stop() {
+        isTracking = false;
+        confidence = 0f;
+    }
+
+    /**
+     * Полный сброс: следующая детекция будет по всему кадру
+     */
+    public synchronized void reset() {
+        stop();
+        hasLastKnownCorners = false;
+    }
+
+    public synchronized boolean isTracking() {
+        return isTracking;
+    }
+
+    /**
+     * Уверенность трекинга на последнем кадре (0 - потерян, 1 - надежно)
+     */
+    public synchronized float getConfidence() {
+        return isTracking ? confidence : 0f;
+    }
+
+    /**
+     * Границы QR в прямых координатах кадра (как bounding box ML Kit)
+     */
+    public synchronized Rect getUprightBounds() {
+        if (!isTracking) {
+            return null;
+        }
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+
+        for (int i = 0; i < CORNERS; i++) {
+            float[] upright = bufferToUpright(corners[i * 2], corners[i * 2 + 1]);
+            minX = Math.min(minX, upright[0]);
+            minY = Math.min(minY, upright[1]);
+            maxX = Math.max(maxX, upright[0]);
+            maxY = Math.max(maxY, upright[1]);
+        }
+
+        return new Rect(Math.round(minX), Math.round(minY), Math.round(maxX), Math.round(maxY));
+    }
+
+    // ==================== ДЕТЕКЦИЯ ПО ROI ====================
+
+    /**
+     * Вырезает из текущего кадра область вокруг последних известных углов QR
+     * в NV21 (только яркость, хрома нейтральная) для ML Kit.
+     * Копируются только строки ROI из уже сделанной копии Y-плоскости.
+     *
+     * @return ROI или null, если поза неизвестна (нужна детекция по всему кадру)
+     */
+    public synchronized DetectionRoi cropDetectionRoi() {
+        if (!hasLastKnownCorners || currentPyramid == null) {
+            return null;
+        }
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < CORNERS; i++) {
+            minX = Math.min(minX, corners[i * 2]);
+            minY = Math.min(minY, corners[i * 2 + 1]);
+            maxX = Math.max(maxX, corners[i * 2]);
+            maxY = Math.max(maxY, corners[i * 2 + 1]);
+        }
+
+        float size = Math.max(maxX - minX, maxY - minY) * ROI_EXPANSION;
+        size = Math.max(size, MIN_ROI_SIZE);
+        float centerX = (minX + maxX) / 2f;
+        float centerY = (minY + maxY) / 2f;
+
+        // NV21 требует четных размеров и координат
+        int left = Math.max(0, (int) (centerX - size / 2f)) & ~1;
+        int top = Math.max(0, (int) (centerY - size / 2f)) & ~1;
+        int right = Math.min(frameWidth, (int) (centerX + size / 2f)) & ~1;
+        int bottom = Math.min(frameHeight, (int) (centerY + size / 2f)) & ~1;
+
+        int width = right - left;
+        int height = bottom - top;
+        if (width < 2 || height < 2) {
+            return null;
+        }
+
+        // ROI почти весь кадр - выгоднее сканировать кадр целиком
+        if (width * height > frameWidth * frameHeight * 3 / 4) {
+            return null;
+        }
+
+        // Буфер NV21 должен точно совпадать по размеру с изображением
+        int lumaSize = width * height;
+        int requiredSize = lumaSize * 3 / 2;
+        if (roiBuffer == null || roiBuffer.length != requiredSize) {
+            roiBuffer = new byte[requiredSize];
+            Arrays.fill(roiBuffer, lumaSize, requiredSize, (byte) 128);
+        }
+
+        byte[] luma = currentPyramid[0];
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(luma, (top + row) * frameWidth + left, roiBuffer, row * width, width);
+        }
+
+        roiRect.set(left, top, right, bottom);
+        return new DetectionRoi(roiBuffer, width, height, new Rect(roiRect));
+    }
+
+    /**
+     * Уменьшенный кадр целиком в NV21 (только яркость) - уровень уже построенной пирамиды
+     * с длинной стороной не больше maxSide. Буфер переиспользуется: следующий вызов
+     * перезаписывает его, поэтому звать только после завершения обработки предыдущего.
+     *
+     * @return Кадр в системе буфера (bufferRect - весь кадр) или null, если кадров еще не было
+     */
+    public synchronized DetectionRoi copyDownscaledFrame(int maxSide) {
+        if (currentPyramid == null) {
+            return null;
+        }
+
+        int level = 0;
+        while (level < PYRAMID_LEVELS - 1
+                && Math.max(levelWidths[level], levelHeights[level]) > maxSide) {
+            level++;
+        }
+
+        // NV21 требует четных размеров
+        int levelWidth = levelWidths[level];
+        int width = levelWidth & ~1;
+        int height = levelHeights[level] & ~1;
+        if (width < 2 || height < 2) {
+            return null;
+        }
+
+        int lumaSize = width * height;
+        int requiredSize = lumaSize * 3 / 2;
+        if (downscaledBuffer == null || downscaledBuffer.length != requiredSize) {
+            downscaledBuffer = new byte[requiredSize];
+            Arrays.fill(downscaledBuffer, lumaSize, requiredSize, (byte) 128);
+        }
+
+        byte[] luma = currentPyramid[level];
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(luma, row * levelWidth, downscaledBuffer, row * width, width);
+        }
+
+        return new DetectionRoi(downscaledBuffer, width, height, new Rect(0, 0, frameWidth, frameHeight));
+    }
+
+    /**
+     * Переводит точки ML Kit из координат ROI в прямые координаты кадра
+     */
+    public synchronized Point[] roiToUpright(Point[] roiPoints, Rect roi) {
+        if (roiPoints == null) {
+            return null;
+        }
+
+        Point[] result = new Point[roiPoints.length];
+        for (int i = 0; i < roiPoints.length; i++) {
+            float[] upright = bufferToUpright(roi.left + roiPoints[i].x, roi.top + roiPoints[i].y);
+            result[i] = new Point(Math.round(upright[0]), Math.round(upright[1]));
+        }
+        return result;
+    }
+
+    /**
+     * Переводит прямоугольник ML Kit из координат ROI в прямые координаты кадра
+     */
+    public synchronized Rect roiToUpright(Rect roiBounds, Rect roi) {
+        float[] a = bufferToUpright(roi.left + roiBounds.left, roi.top + roiBounds.top);
+        float[] b = bufferToUpright(roi.left + roiBounds.right, roi.top + roiBounds.bottom);
+        return new Rect(
+                Math.round(Math.min(a[0], b[0])),
+                Math.round(Math.min(a[1], b[1])),
+                Math.round(Math.max(a[0], b[0])),
+                Math.round(Math.max(a[1], b[1]))
+        );
+    }
+
+    /**
+     * Вырезанная область кадра в формате NV21 и ее положение в буфере
+     */
+    public static class DetectionRoi {
+        public final byte[] nv21;
+        public final int width;
+        public final int height;
+        public final Rect bufferRect;
+
+        DetectionRoi(byte[] nv21, int width, int height, Rect bufferRect) {
+            this.nv21 = nv21;
+            this.width = width;
+            this.height = height;
+            this.bufferRect = bufferRect;
+        }
+    }
+
+    // ==================== ТРЕКИНГ ====================
+
+    private void trackCorners() {
+        int trackedCount = 0;
+
+        for (int i = 0; i < CORNERS; i++) {
+            if (trackPoint(corners[i * 2], corners[i * 2 + 1], trackedCorners, i * 2)) {
+                trackedCount++;
+            }
+        }
+
+        if (trackedCount < CORNERS) {
+            stop();
+            return;
+        }
+
+        // Проверяем, что четырехугольник QR не "развалился"
+        float oldArea = quadArea(corners);
+        float newArea = quadArea(trackedCorners);
+        float areaRatio = oldArea > 0 ? newArea / oldArea : 0;
+
+        if (areaRatio < MIN_AREA_RATIO || areaRatio > MAX_AREA_RATIO) {
+            stop();
+            return;
+        }
+
+        System.arraycopy(trackedCorners, 0, corners, 0, corners.length);
+
+        // Чем сильнее изменилась площадь, тем меньше доверия
+        float areaChange = Math.abs(1f - areaRatio) / (MAX_AREA_RATIO - 1f);
+        confidence = Math.min(confidence, 1f) * 0.5f + (1f - Math.min(1f, areaChange)) * 0.5f;
+    }
+
+    /**
+     * Пирамидальный Lucas-Kanade для одной точки
+     *
+     * @return true, если точка найдена на текущем кадре
+     */
+    private boolean trackPoint(float x, float y, float[] out, int outIndex) {
+        float guessX = 0;
+        float guessY = 0;
+
+        for (int level = PYRAMID_LEVELS - 1; level >= 0; level--) {
+            byte[] prev = previousPyramid[level];
+            byte[] curr = currentPyramid[level];
+            int w = levelWidths[level];
+            int h = levelHeights[level];
+
+            float levelScale = 1f / (1 << level);
+            float px = x * levelScale;
+            float py = y * levelScale;
+
+            // Матрица градиентов окна на предыдущем кадре
+            float gxx = 0, gxy = 0, gyy = 0;
+            int k = 0;
+            for (int dy = -WINDOW_RADIUS; dy <= WINDOW_RADIUS; dy++) {
+                for (int dx = -WINDOW_RADIUS; dx <= WINDOW_RADIUS; dx++) {
+                    float ix = gradientX(prev, w, h, px + dx, py + dy);
+                    float iy = gradientY(prev, w, h, px + dx, py + dy);
+                    windowValues[k] = sample(prev, w, h, px + dx, py + dy);
+                    windowGradX[k] = ix;
+                    windowGradY[k] = iy;
+                    gxx += ix * ix;
+                    gxy += ix * iy;
+                    gyy += iy * iy;
+                    k++;
+                }
+            }
+
+            float det = gxx * gyy - gxy * gxy;
+            if (det < MIN_EIGEN_DETERMINANT) {
+                return false;
+            }
+
+            float flowX = 0;
+            float flowY = 0;
+
+            for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+                float bx = 0, by = 0;
+                k = 0;
+                for (int dy = -WINDOW_RADIUS; dy <= WINDOW_RADIUS; dy++) {
+                    for (int dx = -WINDOW_RADIUS; dx <= WINDOW_RADIUS; dx++) {
+                        float diff = windowValues[k]
+                                - sample(curr, w, h, px + dx + guessX + flowX, py + dy + guessY + flowY);
+                        bx += diff * windowGradX[k];
+                        by += diff * windowGradY[k];
+                        k++;
+                    }
+                }
+
+                float etaX = (gyy * bx - gxy * by) / det;
+                float etaY = (gxx * by - gxy * bx) / det;
+                flowX += etaX;
+                flowY += etaY;
+
+                if (Math.abs(etaX) < EPSILON && Math.abs(etaY) < EPSILON) {
+                    break;
+                }
+            }
+
+            if (level > 0) {
+                guessX = 2 * (guessX + flowX);
+                guessY = 2 * (guessY + flowY);
+            } else {
+                guessX += flowX;
+                guessY += flowY;
+            }
+        }
+
+        float newX = x + guessX;
+        float newY = y + guessY;
+
+        if (newX < 0 || newY < 0 || newX >= frameWidth - 1 || newY >= frameHeight - 1) {
+            return false;
+        }
+
+        // Средняя разница яркости окна - мера ошибки трекинга
+        float error = 0;
+        byte[] prev = previousPyramid[0];
+        byte[] curr = currentPyramid[0];
+        for (int dy = -WINDOW_RADIUS; dy <= WINDOW_RADIUS; dy++) {
+            for (int dx = -WINDOW_RADIUS; dx <= WINDOW_RADIUS; dx++) {
+                error += Math.abs(sample(prev, frameWidth, frameHeight, x + dx, y + dy)
+                        - sample(curr, frameWidth, frameHeight, newX + dx, newY + dy));
+            }
+        }
+        if (error / WINDOW_SIZE > MAX_POINT_ERROR) {
+            return false;
+        }
+
+        out[outIndex] = newX;
+        out[outIndex + 1] = newY;
+        return true;
+    }
+
+    private static float quadArea(float[] points) {
+        float area = 0;
+        for (int i = 0; i < CORNERS; i++) {
+            int j = (i + 1) % CORNERS;
+            area += points[i * 2] * points[j * 2 + 1] - points[j * 2] * points[i * 2 + 1];
+        }
+        return Math.abs(area) / 2f;
+    }
+
+    // ==================== ИЗОБРАЖЕНИЕ ====================
+
+    private void allocatePyramids(int width, int height) {
+        frameWidth = width;
+        frameHeight = height;
+
+        levelWidths = new int[PYRAMID_LEVELS];
+        levelHeights = new int[PYRAMID_LEVELS];
+        currentPyramid = new byte[PYRAMID_LEVELS][];
+        previousPyramid = new byte[PYRAMID_LEVELS][];
+
+        int w = width;
+        int h = height;
+        for (int level = 0; level < PYRAMID_LEVELS; level++) {
+            levelWidths[level] = w;
+            levelHeights[level] = h;
+            currentPyramid[level] = new byte[w * h];
+            previousPyramid[level] = new byte[w * h];
+            w = Math.max(1, w / 2);
+            h = Math.max(1, h / 2);
+        }
+    }
+
+    private static void copyLumaPlane(ImageProxy.PlaneProxy plane, byte[] dst, int width, int height) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        buffer.rewind();
+
+        if (rowStride == width) {
+            buffer.get(dst, 0, width * height);
+            return;
+        }
+
+        for (int row = 0; row < height; row++) {
+            buffer.position(row * rowStride);
+            buffer.get(dst, row * width, width);
+        }
+    }
+
+    private void buildPyramid(byte[][] pyramid) {
+        for (int level = 1; level < PYRAMID_LEVELS; level++) {
+            byte[] src = pyramid[level - 1];
+            byte[] dst = pyramid[level];
+            int srcWidth = levelWidths[level - 1];
+            int w = levelWidths[level];
+            int h = levelHeights[level];
+
+            for (int y = 0; y < h; y++) {
+                int srcRow = y * 2 * srcWidth;
+                int dstRow = y * w;
+                for (int x = 0; x < w; x++) {
+                    int s = srcRow + x * 2;
+                    int sum = (src[s] & 0xFF) + (src[s + 1] & 0xFF)
+                            + (src[s + srcWidth] & 0xFF) + (src[s + srcWidth + 1] & 0xFF);
+                    dst[dstRow + x] = (byte) (sum >> 2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Билинейная выборка яркости с ограничением по краям
+     */
+    private static float sample(byte[] image, int width, int height, float x, float y) {
+        if (x < 0) x = 0;
+        if (y < 0) y = 0;
+        if (x > width - 1.001f) x = width - 1.001f;
+        if (y > height - 1.001f) y = height - 1.001f;
+
+        int x0 = (int) x;
+        int y0 = (int) y;
+        float fx = x - x0;
+        float fy = y - y0;
+
+        int i = y0 * width + x0;
+        float top = (image[i] & 0xFF) * (1 - fx) + (image[i + 1] & 0xFF) * fx;
+        float bottom = (image[i + width] & 0xFF) * (1 - fx) + (image[i + width + 1] & 0xFF) * fx;
+        return top * (1 - fy) + bottom * fy;
+    }
+
+    private static float gradientX(byte[] image, int width, int height, float x, float y) {
+        return (sample(image, width, height, x + 1, y) - sample(image, width, height, x - 1, y)) / 2f;
+    }
+
+    private static float gradientY(byte[] image, int width, int height, float x, float y) {
+        return (sample(image, width, height, x, y + 1) - sample(image, width, height, x, y - 1)) / 2f;
+    }
+
+    // ==================== КООРДИНАТЫ ====================
+
+    /**
+     * Прямые координаты (после поворота на rotationDegrees) -> координаты буфера
+     */
+    private float[] uprightToBuffer(float u, float v) {
+        switch (rotationDegrees) {
+            case 90:
+                return new float[]{v, frameHeight - 1 - u};
+            case 180:
+                return new float[]{frameWidth - 1 - u, frameHeight - 1 - v};
+            case 270:
+                return new float[]{frameWidth - 1 - v, u};
+            default:
+                return new float[]{u, v};
+        }
+    }
+
+    /**
+     * Координаты буфера -> прямые координаты
+     */
+    private float[] bufferToUpright(float x, float y) {
+        switch (rotationDegrees) {
+            case 90:
+                return new float[]{frameHeight - 1 - y, x};
+            case 180:
+                return new float[]{frameWidth - 1 - x, frameHeight - 1 - y};
+            case 270:
+                return new float[]{y, frameWidth - 1 - x};
+            default:
+                return new float[]{x, y};
+        }
+    }
+}
@@ -1,11 +1,10 @@
 package kit.developers.kitar;
 
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.mlkit.vision.common.InputImage;
@@ -15,19 +14,21 @@ import com.google.mlkit.vision.segmentation.Segmenter;
 import com.google.mlkit.vision.segmentation.selfie.SelfieSegmenterOptions;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Помощник для сегментации человека на изображении
- * Позволяет наложить 3D модель ЗА человеком
+ * Маска позволяет наложить 3D модель ЗА человеком (см. PhotoCompositor)
  */
 public class SegmentationHelper {
 
     private static final String TAG = "SegmentationHelper";
     private Segmenter segmenter;
 
+    // Повторные снимки той же сцены берут маску отсюда вместо новой сегментации
+    private final MaskCache maskCache = new MaskCache();
+
     public SegmentationHelper() {
         // Настройки сегментации
         SelfieSegmenterOptions options =
@@ -41,94 +42,111 @@ public class SegmentationHelper {
     }
 
     /**
-     * Основной метод: накладывает 3D модель ЗА человеком
+     * Извлекает маску человека из области изображения, не блокируя потоки
+     *
+     * Сегментируется только фрагмент снимка: время и память зависят от области, а не от кадра.
+     * Вырезание фрагмента и конвертация маски идут на executor, сама сегментация - в ML Kit
      *
-     * @param originalPhoto Оригинальное фото
-     * @param modelBitmap Отрисованная 3D модель (прозрачный фон)
-     * @return Итоговое изображение с моделью за человеком
+     * @param uprightRegion Область в прямых координатах снимка (внутри кадра)
+     * @return Маска этой области в прямых координатах, в разрешении сегментации (не фото);
+     *         null при любой ошибке (future всегда завершается). Альфа маски - вероятность человека, без порога
      */
-    public Bitmap applyModelBehindPerson(Bitmap originalPhoto, Bitmap modelBitmap) {
-        try {
-            Log.d(TAG, "Начало сегментации...");
-
-            // 1. Получаем маску человека
-            Bitmap personMask = extractPersonMask(originalPhoto);
-
-            if (personMask == null) {
-                Log.e(TAG, "Не удалось создать маску");
-                return originalPhoto;
-            }
-
-            Log.d(TAG, "Маска получена, создание итогового изображения...");
-
-            // 2. Создаем итоговое изображение
-            Bitmap result = Bitmap.createBitmap(
-                    originalPhoto.getWidth(),
-                    originalPhoto.getHeight(),
-                    Bitmap.Config.ARGB_8888
-            );
-
-            Canvas canvas = new Canvas(result);
-
-            // 3. Рисуем оригинальное фото (фон)
-            canvas.drawBitmap(originalPhoto, 0, 0, null);
+    public CompletableFuture<Bitmap> extractPersonMaskAsync(CapturedPhoto photo, Rect uprightRegion,
+                                                           Executor executor) {
+        CompletableFuture<Bitmap> result = new CompletableFuture<>();
+
+        executor.execute(() -> {
+            Bitmap fragment = null;
+            try {
+                fragment = cropUpright(photo, uprightRegion);
+                if (fragment == null) {
+                    result.complete(null);
+                    return;
+                }
 
-            // 4. Рисуем 3D модель поверх
-            Paint modelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-            canvas.drawBitmap(modelBitmap, 0, 0, modelPaint);
+                MaskCache.Key cacheKey = MaskCache.createKey(fragment, photo.rotationDegrees);
+                Bitmap cachedMask = maskCache.lookup(cacheKey);
+                if (cachedMask != null) {
+                    recycleFragment(photo, fragment);
+                    completeMask(result, cachedMask);
+                    return;
+                }
 
-            // 5. Накладываем человека поверх модели
-            Bitmap personLayer = extractPerson(originalPhoto, personMask);
-            canvas.drawBitmap(personLayer, 0, 0, null);
+                // ML Kit сам учитывает поворот, маска получается в прямых координатах
+                InputImage image = InputImage.fromBitmap(fragment, photo.rotationDegrees);
+
+                Bitmap segmentedFragment = fragment;
+                segmenter.process(image).addOnCompleteListener(executor, task -> {
+                    try {
+                        // Фрагмент больше не нужен ML Kit
+                        recycleFragment(photo, segmentedFragment);
+
+                        if (!task.isSuccessful()) {
+                            Log.e(TAG, "Ошибка сегментации", task.getException());
+                            result.complete(null);
+                            return;
+                        }
+
+                        // Конвертируем маску в Bitmap; до размера фото ее растягивает композиция
+                        Bitmap mask = maskToBitmap(task.getResult());
+                        if (mask != null) {
+                            maskCache.put(cacheKey, mask);
+                        }
+                        completeMask(result, mask);
+
+                    } catch (Exception e) {
+                        Log.e(TAG, "Ошибка обработки маски", e);
+                        result.complete(null);
+                    }
+                });
 
-            Log.d(TAG, "Композиция завершена успешно!");
+            } catch (Exception e) {
+                // Снимок без перекрытия лучше, чем зависшая кнопка
+                Log.e(TAG, "Ошибка подготовки сегментации", e);
+                recycleFragment(photo, fragment);
+                result.complete(null);
+            }
+        });
 
-            // Освобождаем ресурсы
-            personMask.recycle();
-            personLayer.recycle();
+        return result;
+    }
 
-            return result;
+    /**
+     * Отдает маску; если результат уже выставлен (например, по таймауту), маска освобождается
+     */
+    private static void completeMask(CompletableFuture<Bitmap> result, Bitmap mask) {
+        if (!result.complete(mask) && mask != null) {
+            mask.recycle();
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Ошибка при наложении модели", e);
-            return originalPhoto;
+    private static void recycleFragment(CapturedPhoto photo, Bitmap fragment) {
+        if (fragment != null && fragment != photo.bitmap) {
+            fragment.recycle();
         }
     }
 
     /**
-     * Извлекает маску человека из изображения
+     * Фрагмент bitmap снимка, соответствующий области в прямых координатах
      */
-    private Bitmap extractPersonMask(Bitmap bitmap) {
+    private Bitmap cropUpright(CapturedPhoto photo, Rect uprightRegion) {
         try {
-            InputImage image = InputImage.fromBitmap(bitmap, 0);
-
-            // Используем CountDownLatch для синхронного выполнения
-            CountDownLatch latch = new CountDownLatch(1);
-            AtomicReference<SegmentationMask> maskRef = new AtomicReference<>();
-
-            segmenter.process(image)
-                    .addOnSuccessListener(segmentationMask -> {
-                        maskRef.set(segmentationMask);
-                        latch.countDown();
-                    })
-                    .addOnFailureListener(e -> {
-                        Log.e(TAG, "Ошибка сегментации", e);
-                        latch.countDown();
-                    });
-
-            // Ждем результат (максимум 10 секунд)
-            if (!latch.await(10, TimeUnit.SECONDS)) {
-                Log.e(TAG, "Timeout при сегментации");
+            // Область в прямых координатах -> в координатах bitmap (поворот на 90° переводит целые в целые)
+            RectF region = new RectF(uprightRegion);
+            Matrix toBitmap = new Matrix();
+            photo.getUprightMatrix().invert(toBitmap);
+            toBitmap.mapRect(region);
+
+            Rect crop = new Rect();
+            region.round(crop);
+            if (!crop.intersect(0, 0, photo.bitmap.getWidth(), photo.bitmap.getHeight())) {
                 return null;
             }
 
-            SegmentationMask mask = maskRef.get();
-            if (mask == null) {
-                return null;
-            }
+            Log.d(TAG, "Сегментация области " + crop.width() + "x" + crop.height() +
+                    " из " + photo.bitmap.getWidth() + "x" + photo.bitmap.getHeight());
 
-            // Конвертируем маску в Bitmap
-            return maskToBitmap(mask, bitmap.getWidth(), bitmap.getHeight());
+            return Bitmap.createBitmap(photo.bitmap, crop.left, crop.top, crop.width(), crop.height());
 
         } catch (Exception e) {
             Log.e(TAG, "Ошибка извлечения маски", e);
@@ -139,40 +157,27 @@ public class SegmentationHelper {
     /**
      * Конвертирует SegmentationMask в Bitmap
      */
-    private Bitmap maskToBitmap(SegmentationMask mask, int width, int height) {
+    private Bitmap maskToBitmap(SegmentationMask mask) {
         try {
             ByteBuffer buffer = mask.getBuffer();
             int maskWidth = mask.getWidth();
             int maskHeight = mask.getHeight();
 
             Log.d(TAG, "Размер маски: " + maskWidth + "x" + maskHeight);
-            Log.d(TAG, "Размер изображения: " + width + "x" + height);
-
-            // Создаем bitmap для маски
-            Bitmap maskBitmap = Bitmap.createBitmap(maskWidth, maskHeight, Bitmap.Config.ARGB_8888);
-
-            // Заполняем маску
-            for (int y = 0; y < maskHeight; y++) {
-                for (int x = 0; x < maskWidth; x++) {
-                    // Получаем значение вероятности (0.0 - 1.0)
-                    float confidence = buffer.getFloat();
-
-                    // Если вероятность > 0.5, это человек
-                    if (confidence > 0.5f) {
-                        maskBitmap.setPixel(x, y, Color.WHITE);
-                    } else {
-                        maskBitmap.setPixel(x, y, Color.TRANSPARENT);
-                    }
-                }
-            }
 
-            // Масштабируем маску до размера оригинального изображения
-            if (maskWidth != width || maskHeight != height) {
-                Bitmap scaledMask = Bitmap.createScaledBitmap(maskBitmap, width, height, true);
-                maskBitmap.recycle();
-                return scaledMask;
-            }
+            long start = SystemClock.uptimeMillis();
 
+            // Вероятности пачкой в массив пикселей (мягкая альфа), затем один setPixels
+            int pixelCount = maskWidth * maskHeight;
+            float[] confidences = new float[pixelCount];
+            int[] pixels = new int[pixelCount];
+            MaskConverter.toArgb(buffer.asFloatBuffer(), confidences, pixels);
+
+            // Для маски нужна только альфа - ALPHA_8 в 4 раза меньше ARGB
+            Bitmap maskBitmap = Bitmap.createBitmap(maskWidth, maskHeight, Bitmap.Config.ALPHA_8);
+            maskBitmap.setPixels(pixels, 0, maskWidth, 0, 0, maskWidth, maskHeight);
+
+            Log.d(TAG, "Маска сконвертирована за " + (SystemClock.uptimeMillis() - start) + " мс");
             return maskBitmap;
 
         } catch (Exception e) {
@@ -181,41 +186,11 @@ public class SegmentationHelper {
         }
     }
 
-    /**
-     * Извлекает только человека из оригинального фото используя маску
-     */
-    private Bitmap extractPerson(Bitmap originalPhoto, Bitmap mask) {
-        try {
-            Bitmap personLayer = Bitmap.createBitmap(
-                    originalPhoto.getWidth(),
-                    originalPhoto.getHeight(),
-                    Bitmap.Config.ARGB_8888
-            );
-
-            Canvas canvas = new Canvas(personLayer);
-
-            // Рисуем маску
-            Paint maskPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-            maskPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
-
-            // Сначала рисуем оригинальное фото
-            canvas.drawBitmap(originalPhoto, 0, 0, null);
-
-            // Затем применяем маску (оставляем только человека)
-            canvas.drawBitmap(mask, 0, 0, maskPaint);
-
-            return personLayer;
-
-        } catch (Exception e) {
-            Log.e(TAG, "Ошибка извлечения человека", e);
-            return originalPhoto;
-        }
-    }
-
     /**
      * Очистка ресурсов f
      */
     public void cleanup() {
+        maskCache.clear();
         if (segmenter != null) {
             segmenter.close();
             Log.d(TAG, "Segmenter закрыт");
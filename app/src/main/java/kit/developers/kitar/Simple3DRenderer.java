@@ -7,6 +7,7 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.RectF;
 import android.util.Log;
 
 import java.io.BufferedReader;
@@ -19,6 +20,11 @@ import java.util.Map;
 
 /**
  * 3D рендерер с поддержкой OBJ, MTL и текстур
+ *
+ * Загрузка идет в IO-потоке, рендер - в потоках RENDER: все методы,
+ * которые читают или меняют модель, синхронизированы по рендереру.
+ * Загрузка целиком выполняется под блокировкой, поэтому рендер видит
+ * либо старую модель, либо полностью загруженную новую
  */
 public class Simple3DRenderer {
 
@@ -44,16 +50,16 @@ public class Simple3DRenderer {
 
     private boolean isModelLoaded = false;
 
-    public boolean isModelLoaded() {
+    public synchronized boolean isModelLoaded() {
         return isModelLoaded;
     }
 
-    public List<Face> getFaces() {
+    public synchronized List<Face> getFaces() {
         return faces;
     }
 
     // Для совместимости с AROverlayView
-    public List<Simple3DRenderer.Vector3> getVertices() {
+    public synchronized List<Simple3DRenderer.Vector3> getVertices() {
         List<Simple3DRenderer.Vector3> result = new ArrayList<>();
         for (Vertex v : vertices) {
             result.add(new Simple3DRenderer.Vector3(v.x, v.y, v.z));
@@ -61,25 +67,25 @@ public class Simple3DRenderer {
         return result;
     }
 
-    public void setModelTransform(float scale, float rotX, float rotY, float rotZ) {
+    public synchronized void setModelTransform(float scale, float rotX, float rotY, float rotZ) {
         this.modelScale = scale;
         this.rotationX = rotX;
         this.rotationY = rotY;
         this.rotationZ = rotZ;
     }
 
-    public void setModelOffset(float offsetX, float offsetY, float offsetZ) {
+    public synchronized void setModelOffset(float offsetX, float offsetY, float offsetZ) {
         this.offsetX = offsetX;
         this.offsetY = offsetY;
         this.offsetZ = offsetZ;
     }
 
-    public void setUserScale(float scale) {
+    public synchronized void setUserScale(float scale) {
         this.userScale = scale;
         Log.d(TAG, "Пользовательский масштаб установлен: " + scale);
     }
 
-    public float getUserScale() {
+    public synchronized float getUserScale() {
         return userScale;
     }
 
@@ -390,7 +396,10 @@ public class Simple3DRenderer {
         useTextures = false;
     }
 
-    public boolean loadModel(String modelPath) {
+    /**
+     * Загружает модель; рендер на это время ждет
+     */
+    public synchronized boolean loadModel(String modelPath) {
         if (modelPath == null) {
             createSimpleCube();
             return true;
@@ -559,7 +568,7 @@ public class Simple3DRenderer {
         }
     }
 
-    public void render3DToCanvas(Canvas canvas, float centerX, float centerY, float scale) {
+    public synchronized void render3DToCanvas(Canvas canvas, float centerX, float centerY, float scale) {
         if (!isModelLoaded) {
             return;
         }
@@ -649,7 +658,33 @@ public class Simple3DRenderer {
         }
     }
 
-    public Bitmap renderModelOnBitmap(Bitmap backgroundBitmap, android.graphics.Rect qrBounds) {
+    /**
+     * Границы модели на экране без рисования (только проекция вершин)
+     *
+     * @return Прямоугольник, в который попадет render3DToCanvas с теми же параметрами,
+     *         или null, если модель не загружена
+     */
+    public synchronized RectF computeScreenBounds(float centerX, float centerY, float scale) {
+        if (!isModelLoaded || vertices.isEmpty()) {
+            return null;
+        }
+
+        RectF bounds = null;
+        for (Vertex v : vertices) {
+            Vector2 projected = projectVertex(transformVertex(new Vector3(v.x, v.y, v.z)), scale, centerX, centerY);
+            if (bounds == null) {
+                bounds = new RectF(projected.x, projected.y, projected.x, projected.y);
+            } else {
+                bounds.union(projected.x, projected.y);
+            }
+        }
+
+        // Обводка граней (1 px) и сглаживание
+        bounds.inset(-2f, -2f);
+        return bounds;
+    }
+
+    public synchronized Bitmap renderModelOnBitmap(Bitmap backgroundBitmap, android.graphics.Rect qrBounds) {
         if (!isModelLoaded) {
             return backgroundBitmap;
         }
@@ -867,7 +902,7 @@ public class Simple3DRenderer {
         }
     }
 
-    public void destroy() {
+    public synchronized void destroy() {
         if (vertices != null) {
             vertices.clear();
         }
@@ -6,10 +6,13 @@ import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Класс для наложения водяного знака на изображение /
@@ -20,9 +23,49 @@ public class WatermarkHelper {
     private Context context;
     private Bitmap watermarkBitmap;
 
+    // Масштабированные варианты водяного знака по ширине фото (разрешение снимков почти не меняется)
+    private static final int SCALED_CACHE_SIZE = 3;
+    private final Map<Integer, ScaledWatermark> scaledCache =
+            new LinkedHashMap<Integer, ScaledWatermark>(SCALED_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, ScaledWatermark> eldest) {
+                    if (size() > SCALED_CACHE_SIZE) {
+                        eldest.getValue().bitmap.recycle();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private int scaledCacheHits = 0;
+    private int scaledCacheMisses = 0;
+
+    // Итоговое наложение - только прозрачность, тень уже в кэше
+    private final Paint watermarkPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Водяной знак нужного размера с запеченной тенью.
+     * Тень выходит за края знака, поэтому bitmap больше на padding с каждой стороны
+     */
+    private static class ScaledWatermark {
+        final Bitmap bitmap;
+        final int padding;
+        final int width;
+        final int height;
+
+        ScaledWatermark(Bitmap bitmap, int padding, int width, int height) {
+            this.bitmap = bitmap;
+            this.padding = padding;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
     public WatermarkHelper(Context context) {
         this.context = context;
         loadWatermark();
+
+        watermarkPaint.setAlpha(WatermarkConfig.ALPHA);
     }
 
     /**
@@ -53,99 +96,117 @@ public class WatermarkHelper {
     }
 
     /**
-     * Накладывает водяной знак на изображение
+     * Рисует водяной знак прямо на canvas итогового изображения, без копии.
+     * Масштабированный знак берется из кэша по ширине изображения
      *
-     * @param originalBitmap Исходное изображение
-     * @return Изображение с водяным знаком
+     * @param canvas Canvas изображения
+     * @param imageWidth Ширина изображения
+     * @param imageHeight Высота изображения
      */
-    public Bitmap applyWatermark(Bitmap originalBitmap) {
+    public synchronized void drawWatermark(Canvas canvas, int imageWidth, int imageHeight) {
         if (!isWatermarkLoaded()) {
-            Log.w(TAG, "Водяной знак не загружен, возвращаем оригинал");
-            return originalBitmap;
+            Log.w(TAG, "Водяной знак не загружен");
+            return;
         }
 
-        try {
-            Log.d(TAG, "Наложение водяного знака...");
-
-            // Создаем копию оригинала
-            Bitmap result = Bitmap.createBitmap(
-                    originalBitmap.getWidth(),
-                    originalBitmap.getHeight(),
-                    Bitmap.Config.ARGB_8888
-            );
-
-            Canvas canvas = new Canvas(result);
-
-            // Рисуем оригинальное изображение
-            canvas.drawBitmap(originalBitmap, 0, 0, null);
-
-            // Вычисляем размер и позицию водяного знака
-            int targetWidth = (int) (originalBitmap.getWidth() * WatermarkConfig.WATERMARK_SCALE);
-
-            // Сохраняем пропорции
-            float aspectRatio = (float) watermarkBitmap.getHeight() / watermarkBitmap.getWidth();
-            int targetHeight = (int) (targetWidth * aspectRatio);
+        // Водяной знак нужного размера (с тенью) - из кэша
+        ScaledWatermark scaledWatermark = getScaledWatermark(imageWidth);
+        int targetWidth = scaledWatermark.width;
+        int targetHeight = scaledWatermark.height;
+
+        // Вычисляем позицию
+        float[] position = calculatePosition(
+                WatermarkConfig.POSITION,
+                imageWidth,
+                imageHeight,
+                targetWidth,
+                targetHeight
+        );
+
+        float x = position[0];
+        float y = position[1];
+
+        Log.d(TAG, "Позиция водяного знака: x=" + x + ", y=" + y);
+        Log.d(TAG, "Размер водяного знака: " + targetWidth + "x" + targetHeight);
+
+        // Рисуем водяной знак: простое наложение с прозрачностью, без размытия
+        canvas.drawBitmap(scaledWatermark.bitmap,
+                x - scaledWatermark.padding, y - scaledWatermark.padding, watermarkPaint);
+    }
 
-            // Масштабируем водяной знак
-            Bitmap scaledWatermark = Bitmap.createScaledBitmap(
-                    watermarkBitmap,
-                    targetWidth,
-                    targetHeight,
-                    true
-            );
+    /**
+     * Водяной знак, масштабированный под ширину фото (с сохранением пропорций).
+     * Тень размывается один раз при создании варианта, а не на каждом снимке
+     */
+    private synchronized ScaledWatermark getScaledWatermark(int imageWidth) {
+        int targetWidth = Math.max(1, (int) (imageWidth * WatermarkConfig.WATERMARK_SCALE));
 
-            // Вычисляем позицию
-            float[] position = calculatePosition(
-                    originalBitmap.getWidth(),
-                    originalBitmap.getHeight(),
-                    targetWidth,
-                    targetHeight
+        ScaledWatermark cached = scaledCache.get(targetWidth);
+        if (cached != null && !cached.bitmap.isRecycled()) {
+            scaledCacheHits++;
+            return cached;
+        }
+        scaledCacheMisses++;
+
+        // Сохраняем пропорции
+        float aspectRatio = (float) watermarkBitmap.getHeight() / watermarkBitmap.getWidth();
+        int targetHeight = Math.max(1, (int) (targetWidth * aspectRatio));
+
+        // Запас под тень: радиус размытия плюс смещение
+        int padding = WatermarkConfig.ENABLE_SHADOW
+                ? WatermarkConfig.SHADOW_RADIUS
+                + Math.max(Math.abs(WatermarkConfig.SHADOW_DX), Math.abs(WatermarkConfig.SHADOW_DY))
+                : 0;
+
+        Bitmap baked = Bitmap.createBitmap(
+                targetWidth + 2 * padding, targetHeight + 2 * padding, Bitmap.Config.ARGB_8888);
+
+        Paint bakePaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        if (WatermarkConfig.ENABLE_SHADOW) {
+            bakePaint.setShadowLayer(
+                    WatermarkConfig.SHADOW_RADIUS,
+                    WatermarkConfig.SHADOW_DX,
+                    WatermarkConfig.SHADOW_DY,
+                    WatermarkConfig.SHADOW_COLOR
             );
+        }
 
-            float x = position[0];
-            float y = position[1];
-
-            Log.d(TAG, "Позиция водяного знака: x=" + x + ", y=" + y);
-            Log.d(TAG, "Размер водяного знака: " + targetWidth + "x" + targetHeight);
-
-            // Настраиваем Paint для водяного знака
-            Paint watermarkPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
-            watermarkPaint.setAlpha(WatermarkConfig.ALPHA);
+        // Масштабирование и тень - одной отрисовкой в кэшируемый bitmap
+        new Canvas(baked).drawBitmap(watermarkBitmap, null,
+                new Rect(padding, padding, padding + targetWidth, padding + targetHeight), bakePaint);
 
-            // Добавляем тень если включено
-            if (WatermarkConfig.ENABLE_SHADOW) {
-                watermarkPaint.setShadowLayer(
-                        WatermarkConfig.SHADOW_RADIUS,
-                        WatermarkConfig.SHADOW_DX,
-                        WatermarkConfig.SHADOW_DY,
-                        WatermarkConfig.SHADOW_COLOR
-                );
-            }
+        cached = new ScaledWatermark(baked, padding, targetWidth, targetHeight);
+        scaledCache.put(targetWidth, cached);
 
-            // Рисуем водяной знак
-            canvas.drawBitmap(scaledWatermark, x, y, watermarkPaint);
+        Log.d(TAG, "Водяной знак подготовлен: " + targetWidth + "x" + targetHeight +
+                (padding > 0 ? ", тень +" + padding + " px" : ""));
+        return cached;
+    }
 
-            // Освобождаем временный bitmap
-            scaledWatermark.recycle();
+    synchronized int getScaledCacheHits() {
+        return scaledCacheHits;
+    }
 
-            Log.d(TAG, "Водяной знак успешно наложен");
-            return result;
+    synchronized int getScaledCacheMisses() {
+        return scaledCacheMisses;
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Ошибка наложения водяного знака", e);
-            return originalBitmap;
-        }
+    synchronized int getScaledCacheSize() {
+        return scaledCache.size();
     }
 
     /**
      * Вычисляет координаты для размещения водяного знака
+     *
+     * @return {x, y} левого верхнего угла
      */
-    private float[] calculatePosition(int imageWidth, int imageHeight,
-                                      int watermarkWidth, int watermarkHeight) {
+    static float[] calculatePosition(WatermarkConfig.Position position,
+                                     int imageWidth, int imageHeight,
+                                     int watermarkWidth, int watermarkHeight) {
         float x = 0;
         float y = 0;
 
-        switch (WatermarkConfig.POSITION) {
+        switch (position) {
             case TOP_LEFT:
                 x = WatermarkConfig.MARGIN_HORIZONTAL;
                 y = WatermarkConfig.MARGIN_VERTICAL;
@@ -188,7 +249,12 @@ public class WatermarkHelper {
     /**
      * Очистка ресурсов
      */
-    public void cleanup() {
+    public synchronized void cleanup() {
+        for (ScaledWatermark scaled : scaledCache.values()) {
+            scaled.bitmap.recycle();
+        }
+        scaledCache.clear();
+
         if (watermarkBitmap != null && !watermarkBitmap.isRecycled()) {
             watermarkBitmap.recycle();
             watermarkBitmap = null;
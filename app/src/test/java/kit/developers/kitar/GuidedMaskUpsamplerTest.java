@@ -0,0 +1,116 @@
+package kit.developers.kitar;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверка увеличения маски по фото: край, перекрытие модели и пропуск плиток
+ */
+public class GuidedMaskUpsamplerTest {
+
+    // Маска 8x8 на область фото 32x32 (4 пикселя фото на пиксель маски)
+    private static final int MASK_SIZE = 8;
+    private static final int REGION_SIZE = 32;
+
+    private static final int DARK = 20;
+    private static final int BRIGHT = 220;
+    private static final int GRAY = 128;
+    private static final int GRAY_PIXEL = 0xFF808080;
+
+    @Test
+    public void sample_hardMaskEdgeFollowsGuideEdge() {
+        // Слева темный фон, справа светлый человек; граница маски и фото между столбцами 3 и 4
+        float[] mask = new float[MASK_SIZE * MASK_SIZE];
+        int[] guide = new int[MASK_SIZE * MASK_SIZE];
+        for (int y = 0; y < MASK_SIZE; y++) {
+            for (int x = 0; x < MASK_SIZE; x++) {
+                mask[y * MASK_SIZE + x] = x >= 4 ? 1f : 0f;
+                guide[y * MASK_SIZE + x] = x >= 4 ? BRIGHT : DARK;
+            }
+        }
+        GuidedMaskUpsampler upsampler = upsampler(mask, guide);
+
+        // Пиксель фото на стыке: вероятность определяет его яркость, а не сетка маски
+        assertTrue(upsampler.sample(16, 16, BRIGHT) > 0.95f);
+        assertTrue(upsampler.sample(16, 16, DARK) < 0.05f);
+        assertTrue(upsampler.sample(15, 16, BRIGHT) > 0.95f);
+        assertTrue(upsampler.sample(15, 16, DARK) < 0.05f);
+
+        // Без края на фото - обычное сглаживание между соседями
+        Arrays.fill(guide, GRAY);
+        float blended = upsampler(mask, guide).sample(16, 16, GRAY);
+        assertTrue(blended > 0.3f && blended < 0.7f);
+    }
+
+    @Test
+    public void sample_outsideRegionIsBackground() {
+        float[] mask = uniformMask(1f);
+        GuidedMaskUpsampler upsampler = new GuidedMaskUpsampler(mask, uniformGuide(), MASK_SIZE, MASK_SIZE,
+                10, 10, REGION_SIZE, REGION_SIZE);
+
+        assertEquals(1f, upsampler.sample(10, 10, GRAY), 1e-4f);
+        assertEquals(0f, upsampler.sample(9, 20, GRAY), 0f);
+        assertEquals(0f, upsampler.sample(20, 10 + REGION_SIZE, GRAY), 0f);
+    }
+
+    @Test
+    public void occlude_scalesAlphaByOneMinusProbability() {
+        int[] model = {0xC8112233, 0x00445566};
+        int[] photo = {GRAY_PIXEL, GRAY_PIXEL};
+
+        assertTrue(upsampler(uniformMask(0.5f), uniformGuide()).occlude(model, photo, 8, 8, 2, 1));
+
+        // 200 * (1 - 0.5) = 100, цвет не меняется; прозрачный пиксель не трогается
+        assertArrayEquals(new int[]{0x64112233, 0x00445566}, model);
+    }
+
+    @Test
+    public void occlude_ignoresProbabilityAtOrBelowThreshold() {
+        int[] photo = {GRAY_PIXEL};
+
+        int[] model = {0xC8112233};
+        assertFalse(upsampler(uniformMask(0.04f), uniformGuide()).occlude(model, photo, 8, 8, 1, 1));
+        assertArrayEquals(new int[]{0xC8112233}, model);
+
+        // Чуть выше порога: 200 * (1 - 0.06) = 188
+        model = new int[]{0xC8112233};
+        assertTrue(upsampler(uniformMask(0.06f), uniformGuide()).occlude(model, photo, 8, 8, 1, 1));
+        assertArrayEquals(new int[]{0xBC112233}, model);
+    }
+
+    @Test
+    public void touchesPerson_usesThresholdAndWindow() {
+        // Везде слабая вероятность, не выше порога
+        float[] mask = uniformMask(0.04f);
+        assertFalse(upsampler(mask, uniformGuide()).touchesPerson(0, 0, REGION_SIZE, REGION_SIZE));
+
+        // Человек только в левом верхнем пикселе маски
+        mask[0] = 0.5f;
+        GuidedMaskUpsampler upsampler = upsampler(mask, uniformGuide());
+        assertTrue(upsampler.touchesPerson(0, 0, 4, 4));
+        assertTrue(upsampler.touchesPerson(8, 8, 12, 12));
+        assertFalse(upsampler.touchesPerson(24, 24, REGION_SIZE, REGION_SIZE));
+
+        // Плитка вне области маски
+        assertFalse(upsampler.touchesPerson(REGION_SIZE, 0, REGION_SIZE + 8, 8));
+    }
+
+    private static GuidedMaskUpsampler upsampler(float[] mask, int[] guide) {
+        return new GuidedMaskUpsampler(mask, guide, MASK_SIZE, MASK_SIZE, 0, 0, REGION_SIZE, REGION_SIZE);
+    }
+
+    private static float[] uniformMask(float value) {
+        float[] mask = new float[MASK_SIZE * MASK_SIZE];
+        Arrays.fill(mask, value);
+        return mask;
+    }
+
+    private static int[] uniformGuide() {
+        int[] guide = new int[MASK_SIZE * MASK_SIZE];
+        Arrays.fill(guide, GRAY);
+        return guide;
+    }
+}
@@ -0,0 +1,132 @@
+package kit.developers.kitar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверка похожести кадра в кэше масок: dHash, поиск сдвига и пороги
+ */
+public class MaskCacheTest {
+
+    private static final int SIZE = MaskCache.THUMB_SIZE;
+    private static final int REGION_WIDTH = 400;
+    private static final int REGION_HEIGHT = 300;
+
+    @Test
+    public void dHash_setsBitWhereBrightnessGrowsToTheRight() {
+        assertEquals(-1L, MaskCache.dHash(thumbnail(0, 0, 0)));
+        assertEquals(0L, MaskCache.dHash(mirrored(thumbnail(0, 0, 0))));
+
+        // Равные соседние ячейки - бит не ставится
+        assertEquals(0L, MaskCache.dHash(new int[SIZE * SIZE]));
+    }
+
+    @Test
+    public void match_identicalSceneWithoutShift() {
+        MaskCache.Match match = MaskCache.match(key(thumbnail(0, 0, 0), 1000), key(thumbnail(0, 0, 0), 0));
+
+        assertNotNull(match);
+        assertEquals(0, match.dx);
+        assertEquals(0, match.dy);
+        assertEquals(0f, match.difference, 0f);
+    }
+
+    @Test
+    public void match_findsSceneShift() {
+        // Текущая копия в (x, y) = сохраненная в (x - 2, y + 1)
+        MaskCache.Match match = MaskCache.match(key(thumbnail(2, -1, 0), 1000), key(thumbnail(0, 0, 0), 0));
+
+        assertNotNull(match);
+        assertEquals(2, match.dx);
+        assertEquals(-1, match.dy);
+        assertEquals(0f, match.difference, 0f);
+    }
+
+    @Test
+    public void match_acceptsBackToBackCapturesAndRejectsOldEntries() {
+        long cachedAt = 5_000;
+
+        // Снимок после предпросмотра - через десятки секунд
+        assertNotNull(MaskCache.match(key(thumbnail(0, 0, 0), cachedAt + 20_000), key(thumbnail(0, 0, 0), cachedAt)));
+        assertNull(MaskCache.match(key(thumbnail(0, 0, 0), cachedAt + MaskCache.MAX_ENTRY_AGE_MS + 1),
+                key(thumbnail(0, 0, 0), cachedAt)));
+    }
+
+    @Test
+    public void match_rejectsDifferentRegionSize() {
+        MaskCache.Key cached = key(thumbnail(0, 0, 0), 0);
+        MaskCache.Key larger = new MaskCache.Key(thumbnail(0, 0, 0), REGION_WIDTH * 12 / 10, REGION_HEIGHT, 1000);
+
+        assertNull(MaskCache.match(larger, cached));
+    }
+
+    @Test
+    public void match_rejectsHashDistanceAboveThreshold() {
+        MaskCache.Key cached = key(thumbnail(0, 0, 0), 0);
+        MaskCache.Key current = key(mirrored(thumbnail(0, 0, 0)), 1000);
+
+        assertTrue(Long.bitCount(cached.hash ^ current.hash) > MaskCache.MAX_HAMMING_DISTANCE);
+        assertNull(MaskCache.match(current, cached));
+    }
+
+    @Test
+    public void match_meanDifferenceThreshold() {
+        // Шум +-2 проходит, +-4 - уже другой кадр (свет, экспозиция)
+        assertNotNull(MaskCache.match(key(thumbnail(0, 0, 2), 1000), key(thumbnail(0, 0, 0), 0)));
+        assertNull(MaskCache.match(key(thumbnail(0, 0, 4), 1000), key(thumbnail(0, 0, 0), 0)));
+    }
+
+    @Test
+    public void match_maxDifferenceThresholdCatchesLocalMotion() {
+        int[] cached = thumbnail(0, 0, 0);
+
+        // Маленькое пятно почти не меняет среднюю разницу, но дает большой перепад в одной точке
+        int[] slightChange = thumbnail(0, 0, 0);
+        addPatch(slightChange, MaskCache.MAX_PIXEL_DIFFERENCE - 5);
+        int[] movedHand = thumbnail(0, 0, 0);
+        addPatch(movedHand, MaskCache.MAX_PIXEL_DIFFERENCE + 5);
+
+        assertNotNull(MaskCache.match(key(slightChange, 1000), key(cached, 0)));
+        assertNull(MaskCache.match(key(movedHand, 1000), key(cached, 0)));
+    }
+
+    private static MaskCache.Key key(int[] thumbnail, long timestampMs) {
+        return new MaskCache.Key(thumbnail, REGION_WIDTH, REGION_HEIGHT, timestampMs);
+    }
+
+    /**
+     * Сцена: яркость растет слева направо, по вертикали - волна.
+     * Копия сдвинута на (dx, dy) и с шумом +-noise в шахматном порядке
+     */
+    private static int[] thumbnail(int dx, int dy, int noise) {
+        int[] pixels = new int[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int sceneX = x - dx;
+                int sceneY = y - dy;
+                int luma = 40 + 6 * sceneX + (int) Math.round(20 * Math.sin(sceneY / 3.0));
+                pixels[y * SIZE + x] = luma + ((x + y) % 2 == 0 ? noise : -noise);
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] mirrored(int[] pixels) {
+        int[] result = new int[pixels.length];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                result[y * SIZE + x] = pixels[y * SIZE + SIZE - 1 - x];
+            }
+        }
+        return result;
+    }
+
+    private static void addPatch(int[] pixels, int delta) {
+        for (int y = 14; y < 16; y++) {
+            for (int x = 14; x < 16; x++) {
+                pixels[y * SIZE + x] += delta;
+            }
+        }
+    }
+}
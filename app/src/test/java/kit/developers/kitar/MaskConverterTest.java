@@ -0,0 +1,84 @@
+package kit.developers.kitar;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверка конвертации маски сегментации
+ */
+public class MaskConverterTest {
+
+    @Test
+    public void toArgb_usesConfidenceAsAlpha() {
+        FloatBuffer confidences = FloatBuffer.wrap(new float[]{-0.1f, 0f, 0.5f, 1f, 1.2f});
+        int[] out = new int[5];
+
+        MaskConverter.toArgb(confidences, new float[5], out);
+
+        assertArrayEquals(new int[]{0x00FFFFFF, 0x00FFFFFF, 0x80FFFFFF, 0xFFFFFFFF, 0xFFFFFFFF}, out);
+    }
+
+    @Test
+    public void toAlpha_roundsAndClamps() {
+        assertEquals(0, MaskConverter.toAlpha(Float.NEGATIVE_INFINITY));
+        assertEquals(0, MaskConverter.toAlpha(0.001f));
+        assertEquals(1, MaskConverter.toAlpha(0.003f));
+        assertEquals(64, MaskConverter.toAlpha(0.25f));
+        assertEquals(191, MaskConverter.toAlpha(0.75f));
+        assertEquals(255, MaskConverter.toAlpha(Float.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void toArgb_keepsRowOrder() {
+        // Маска 3x2: пиксель (x, y) - в out[y * 3 + x], как его ждет Bitmap.setPixels со stride = ширине
+        int width = 3;
+        int height = 2;
+        ByteBuffer bytes = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+        bytes.asFloatBuffer().put(new float[]{
+                0f, 0.2f, 0.4f,
+                0.6f, 0.8f, 1f
+        });
+        int[] out = new int[width * height];
+
+        MaskConverter.toArgb(bytes.asFloatBuffer(), new float[out.length], out);
+
+        int[] expectedAlpha = {0, 51, 102, 153, 204, 255};
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals("пиксель " + x + "," + y, expectedAlpha[y * width + x], out[y * width + x] >>> 24);
+                assertEquals(0x00FFFFFF, out[y * width + x] & 0x00FFFFFF);
+            }
+        }
+    }
+
+    @Test
+    public void toArgb_readsOnlyOutputLength() {
+        // Буфер длиннее маски: читается ровно out.length значений
+        FloatBuffer confidences = FloatBuffer.wrap(new float[]{1f, 1f, 0.5f, 0.5f});
+        int[] out = new int[2];
+
+        MaskConverter.toArgb(confidences, new float[8], out);
+
+        assertArrayEquals(new int[]{0xFFFFFFFF, 0xFFFFFFFF}, out);
+        assertEquals(2, confidences.position());
+    }
+
+    @Test
+    public void toArgb_readsFromCurrentPosition() {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(4 * 4).order(ByteOrder.nativeOrder());
+        bytes.asFloatBuffer().put(new float[]{1f, 0f, 1f, 0f});
+        FloatBuffer confidences = bytes.asFloatBuffer();
+        confidences.position(2);
+        int[] out = new int[2];
+
+        MaskConverter.toArgb(confidences, new float[2], out);
+
+        assertArrayEquals(new int[]{0xFFFFFFFF, 0x00FFFFFF}, out);
+        assertEquals(4, confidences.position());
+    }
+}
@@ -0,0 +1,81 @@
+package kit.developers.kitar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Положение водяного знака для всех вариантов WatermarkConfig.Position
+ */
+public class WatermarkHelperTest {
+
+    private static final int IMAGE_WIDTH = 4000;
+    private static final int IMAGE_HEIGHT = 3000;
+    private static final int WATERMARK_WIDTH = 1000;
+    private static final int WATERMARK_HEIGHT = 500;
+    private static final float DELTA = 0.001f;
+
+    @Test
+    public void topLeft_usesMargins() {
+        assertPosition(WatermarkConfig.Position.TOP_LEFT,
+                WatermarkConfig.MARGIN_HORIZONTAL,
+                WatermarkConfig.MARGIN_VERTICAL);
+    }
+
+    @Test
+    public void topRight_alignsToRightEdge() {
+        assertPosition(WatermarkConfig.Position.TOP_RIGHT,
+                IMAGE_WIDTH - WATERMARK_WIDTH - WatermarkConfig.MARGIN_HORIZONTAL,
+                WatermarkConfig.MARGIN_VERTICAL);
+    }
+
+    @Test
+    public void bottomLeft_alignsToBottomEdge() {
+        assertPosition(WatermarkConfig.Position.BOTTOM_LEFT,
+                WatermarkConfig.MARGIN_HORIZONTAL,
+                IMAGE_HEIGHT - WATERMARK_HEIGHT - WatermarkConfig.MARGIN_VERTICAL);
+    }
+
+    @Test
+    public void bottomRight_alignsToBothEdges() {
+        assertPosition(WatermarkConfig.Position.BOTTOM_RIGHT,
+                IMAGE_WIDTH - WATERMARK_WIDTH - WatermarkConfig.MARGIN_HORIZONTAL,
+                IMAGE_HEIGHT - WATERMARK_HEIGHT - WatermarkConfig.MARGIN_VERTICAL);
+    }
+
+    @Test
+    public void center_isCentered() {
+        assertPosition(WatermarkConfig.Position.CENTER,
+                (IMAGE_WIDTH - WATERMARK_WIDTH) / 2f,
+                (IMAGE_HEIGHT - WATERMARK_HEIGHT) / 2f);
+    }
+
+    @Test
+    public void custom_centersOnRelativePointInsideImage() {
+        float x = IMAGE_WIDTH * WatermarkConfig.CUSTOM_X - WATERMARK_WIDTH / 2f;
+        float y = IMAGE_HEIGHT * WatermarkConfig.CUSTOM_Y - WATERMARK_HEIGHT / 2f;
+
+        assertPosition(WatermarkConfig.Position.CUSTOM,
+                Math.max(0, Math.min(x, IMAGE_WIDTH - WATERMARK_WIDTH)),
+                Math.max(0, Math.min(y, IMAGE_HEIGHT - WATERMARK_HEIGHT)));
+    }
+
+    @Test
+    public void everyPosition_keepsWatermarkInsideImage() {
+        for (WatermarkConfig.Position position : WatermarkConfig.Position.values()) {
+            float[] xy = WatermarkHelper.calculatePosition(
+                    position, IMAGE_WIDTH, IMAGE_HEIGHT, WATERMARK_WIDTH, WATERMARK_HEIGHT);
+
+            assertTrue(position + " x", xy[0] >= 0 && xy[0] + WATERMARK_WIDTH <= IMAGE_WIDTH);
+            assertTrue(position + " y", xy[1] >= 0 && xy[1] + WATERMARK_HEIGHT <= IMAGE_HEIGHT);
+        }
+    }
+
+    private static void assertPosition(WatermarkConfig.Position position, float expectedX, float expectedY) {
+        float[] xy = WatermarkHelper.calculatePosition(
+                position, IMAGE_WIDTH, IMAGE_HEIGHT, WATERMARK_WIDTH, WATERMARK_HEIGHT);
+
+        assertEquals(position + " x", expectedX, xy[0], DELTA);
+        assertEquals(position + " y", expectedY, xy[1], DELTA);
+    }
+}